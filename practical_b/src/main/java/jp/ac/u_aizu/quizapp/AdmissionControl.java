@@ -0,0 +1,166 @@
+package jp.ac.u_aizu.quizapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the HTTP work a server takes on, and turns the excess away early with a cheap
+ * response instead of letting every request slow down together.
+ * <p>
+ * Each endpoint is wrapped with a concurrency limit. A request that finds its endpoint at
+ * the limit waits for a slot until its priority's queue-time budget runs out, then gets 429;
+ * time spent waiting for a handler thread counts against the budget too. Across endpoints
+ * at most festival.admission.maxInFlight requests are admitted, and lower priorities may
+ * only fill part of that: when the server is full, expensive requests get 503 first while
+ * the cheap ones a running quiz depends on still get through. Both carry Retry-After.
+ */
+class AdmissionControl {
+
+    enum Priority {
+        // Share of maxInFlight, queue-time budget, Retry-After seconds
+        HIGH(100, 2000, 1),
+        NORMAL(75, 1000, 1),
+        LOW(40, 500, 5);
+
+        final int capacityPercent;
+        final long budgetNanos;
+        final int retryAfterSec;
+
+        Priority(int capacityPercent, long budgetMs, int retryAfterSec) {
+            this.capacityPercent = capacityPercent;
+            this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+            this.retryAfterSec = retryAfterSec;
+        }
+    }
+
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<Limit> limits = new CopyOnWriteArrayList<>();
+
+    AdmissionControl(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * A request waiting for its endpoint holds a handler thread, so the default matches the
+     * platform pool (festival.exec.threads): then a quarter of the threads is always left to
+     * HIGH endpoints.
+     */
+    static AdmissionControl fromSystemProperties() {
+        return new AdmissionControl(Integer.getInteger("festival.admission.maxInFlight",
+                Integer.getInteger("festival.exec.threads", 64)));
+    }
+
+    /**
+     * Wraps an endpoint's handler.
+     *
+     * @param name the endpoint as reported in {@link #toJson()}
+     * @param maxConcurrent requests the endpoint runs at once
+     */
+    HttpHandler limit(String name, Priority priority, int maxConcurrent, HttpHandler handler) {
+        Limit limit = new Limit(name, priority, maxConcurrent, handler);
+        limits.add(limit);
+        return limit;
+    }
+
+    /**
+     * @return in-flight and per-endpoint admitted and shed counts
+     */
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{\"maxInFlight\":").append(maxInFlight)
+                .append(",\"inFlight\":").append(inFlight.get()).append(",\"endpoints\":[");
+        for (int i = 0; i < limits.size(); i++) {
+            Limit limit = limits.get(i);
+            if (i > 0) sb.append(",");
+            sb.append("{\"name\":\"").append(limit.name)
+              .append("\",\"priority\":\"").append(limit.priority.name())
+              .append("\",\"active\":").append(limit.maxConcurrent - limit.slots.availablePermits())
+              .append(",\"admitted\":").append(limit.admitted.sum())
+              .append(",\"shed429\":").append(limit.shedBusy.sum())
+              .append(",\"shed503\":").append(limit.shedOverload.sum()).append("}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    // Counts the request in flight if its priority still has room
+    private boolean enter(Priority priority) {
+        int cap = Math.max(1, maxInFlight * priority.capacityPercent / 100);
+        while (true) {
+            int n = inFlight.get();
+            if (n >= cap) return false;
+            if (inFlight.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    private final class Limit implements HttpHandler {
+        final String name;
+        final Priority priority;
+        final int maxConcurrent;
+        final Semaphore slots;
+        final HttpHandler handler;
+        final LongAdder admitted = new LongAdder();
+        final LongAdder shedBusy = new LongAdder();
+        final LongAdder shedOverload = new LongAdder();
+
+        Limit(String name, Priority priority, int maxConcurrent, HttpHandler handler) {
+            this.name = name;
+            this.priority = priority;
+            this.maxConcurrent = maxConcurrent;
+            this.slots = new Semaphore(maxConcurrent, true);
+            this.handler = handler;
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            // Only the NIO engine knows when the request arrived; other servers start the clock here
+            long queued = ex instanceof NioHttpExchange
+                    ? System.nanoTime() - ((NioHttpExchange) ex).getReceivedNanos() : 0;
+            if (queued >= priority.budgetNanos || !enter(priority)) {
+                shedOverload.increment();
+                reject(ex, 503, "Server busy");
+                return;
+            }
+            try {
+                if (!slots.tryAcquire(priority.budgetNanos - queued, TimeUnit.NANOSECONDS)) {
+                    shedBusy.increment();
+                    reject(ex, 429, "Too many requests");
+                    return;
+                }
+                try {
+                    admitted.increment();
+                    handler.handle(ex);
+                } finally {
+                    slots.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                shedOverload.increment();
+                reject(ex, 503, "Server busy");
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private void reject(HttpExchange ex, int status, String error) throws IOException {
+            byte[] body = ("{\"error\":\"" + error + "\",\"retryAfter\":" + priority.retryAfterSec + "}")
+                    .getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+            ex.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            ex.getResponseHeaders().set("Retry-After", String.valueOf(priority.retryAfterSec));
+            ex.sendResponseHeaders(status, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
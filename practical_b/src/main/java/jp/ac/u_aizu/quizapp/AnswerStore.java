@@ -0,0 +1,153 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Answers for a session, stored by column instead of as one object per submission.
+ * Every player gets a dense index when they join; for each question, the chosen option
+ * and the answer latency live in primitive arrays at that index (5 bytes per answer).
+ * Recording is lock-free: a compare-and-set on the choice byte admits exactly one answer
+ * per player, and the per-choice counters are atomics, so hosts read the live
+ * distribution without scanning anything.
+ */
+class AnswerStore {
+
+    private final AtomicInteger nextPlayerIndex = new AtomicInteger();
+    private final Map<Integer, QuestionAnswers> questions = new ConcurrentHashMap<>();
+
+    /**
+     * @return the dense index for a newly joined player
+     */
+    int registerPlayer() {
+        return nextPlayerIndex.getAndIncrement();
+    }
+
+    QuestionAnswers forQuestion(int questionId, int choiceCount) {
+        return questions.computeIfAbsent(questionId, k -> new QuestionAnswers(choiceCount));
+    }
+
+    /**
+     * @return the answers for a question, or null if nobody has answered it
+     */
+    QuestionAnswers get(int questionId) {
+        return questions.get(questionId);
+    }
+
+    /**
+     * @return the IDs of the questions that have answer columns
+     */
+    Set<Integer> questionIds() {
+        return questions.keySet();
+    }
+
+    /**
+     * Answer columns for one question. Players are split into fixed-size chunks that are
+     * allocated as players join, so growing copies only the chunk directory, never the answers.
+     */
+    static final class QuestionAnswers {
+        private static final int CHUNK_BITS = 10;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+        private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+        // choice + 1 per player, 0 while unanswered
+        private volatile byte[][] choices = new byte[0][];
+        private volatile int[][] latencies = new int[0][];
+        private final AtomicIntegerArray tallies;
+        private final AtomicInteger answered = new AtomicInteger();
+
+        QuestionAnswers(int choiceCount) {
+            this.tallies = new AtomicIntegerArray(choiceCount);
+        }
+
+        /**
+         * Records a player's answer unless they already answered.
+         *
+         * @param choice must be below the choice count given at creation (and at most 126)
+         * @return false if the player had already answered
+         */
+        boolean record(int playerIndex, int choice, int latencyMs) {
+            int chunk = playerIndex >>> CHUNK_BITS;
+            int slot = playerIndex & (CHUNK_SIZE - 1);
+            if (chunk >= choices.length) grow(chunk);
+
+            if (!BYTES.compareAndSet(choices[chunk], slot, (byte) 0, (byte) (choice + 1))) {
+                return false;
+            }
+            INTS.setRelease(latencies[chunk], slot, latencyMs);
+            tallies.incrementAndGet(choice);
+            answered.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * @return the player's choice, or -1 if they have not answered
+         */
+        int choiceOf(int playerIndex) {
+            int chunk = playerIndex >>> CHUNK_BITS;
+            byte[][] current = choices;
+            if (chunk >= current.length) return -1;
+            return (byte) BYTES.getVolatile(current[chunk], playerIndex & (CHUNK_SIZE - 1)) - 1;
+        }
+
+        int latencyOf(int playerIndex) {
+            int chunk = playerIndex >>> CHUNK_BITS;
+            int[][] current = latencies;
+            if (chunk >= current.length) return 0;
+            return (int) INTS.getAcquire(current[chunk], playerIndex & (CHUNK_SIZE - 1));
+        }
+
+        int answeredCount() {
+            return answered.get();
+        }
+
+        int choiceCount() {
+            return tallies.length();
+        }
+
+        /**
+         * Copies the raw columns of players 0..n-1 (choice + 1, 0 while unanswered, and the
+         * latency). Must run on the thread that records answers, so the copy is consistent.
+         */
+        void copyTo(int n, byte[] choicesOut, int[] latenciesOut) {
+            byte[][] choiceChunks = choices;
+            int[][] latencyChunks = latencies;
+            for (int chunk = 0; chunk < choiceChunks.length && chunk << CHUNK_BITS < n; chunk++) {
+                int from = chunk << CHUNK_BITS;
+                int length = Math.min(CHUNK_SIZE, n - from);
+                System.arraycopy(choiceChunks[chunk], 0, choicesOut, from, length);
+                System.arraycopy(latencyChunks[chunk], 0, latenciesOut, from, length);
+            }
+        }
+
+        int[] tallies() {
+            int[] out = new int[tallies.length()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = tallies.get(i);
+            }
+            return out;
+        }
+
+        private synchronized void grow(int chunk) {
+            int length = choices.length;
+            if (chunk < length) return;
+
+            byte[][] newChoices = Arrays.copyOf(choices, chunk + 1);
+            int[][] newLatencies = Arrays.copyOf(latencies, chunk + 1);
+            for (int i = length; i <= chunk; i++) {
+                newChoices[i] = new byte[CHUNK_SIZE];
+                newLatencies[i] = new int[CHUNK_SIZE];
+            }
+            // Latencies first, so anyone who sees a choice chunk also sees its latency chunk
+            latencies = newLatencies;
+            choices = newChoices;
+        }
+    }
+}
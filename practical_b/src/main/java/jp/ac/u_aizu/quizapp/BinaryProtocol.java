@@ -0,0 +1,172 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact binary encoding of the messages phones receive during a quiz, spoken by sockets
+ * that negotiate the {@link #NAME} subprotocol. Every other message, and everything a phone
+ * sends, stays JSON; static/binaryProtocol.js decodes the records into the same objects the
+ * JSON messages parse to.
+ * <p>
+ * A binary frame holds one or more records: a type byte, the body length as an unsigned
+ * varint, then the body. Integers are unsigned varints, scores zigzag-encoded; a string is
+ * its UTF-8 byte length as a varint followed by the bytes, and an optional string stores
+ * length + 1, with 0 for null.
+ * <p>
+ * Choice texts are sent once per question list rather than in every question: a STRINGS
+ * record carries the distinct choices of a session's prepared questions, and question records
+ * refer to them by index. A question past those gets a table of its own.
+ * The server sends each binary client the table before the first question record that
+ * needs it.
+ * <pre>
+ * STRINGS        table id, count, strings
+ * QUESTION_START table id, question id, total questions, text, time limit, choice count, choice indices
+ * QUESTION_END   question id, correct index, correct answer index, optional explanation
+ * QUESTION_TICK  question id, remaining seconds
+ * ANSWER_ACK     question id + 1 (0 if none), AnswerResult ordinal
+ * QUIZ_RESULT    nickname, score, rank, top count, (rank, nickname, score) per entry, total
+ * </pre>
+ */
+final class BinaryProtocol {
+
+    static final String NAME = "festival.bin.v1";
+    static final String JSON_NAME = "festival.json.v1"; // Lets a client offer both and accept either
+
+    static final int STRINGS = 1;
+    static final int QUESTION_START = 2;
+    static final int QUESTION_END = 3;
+    static final int QUESTION_TICK = 4;
+    static final int ANSWER_ACK = 5;
+    static final int QUIZ_RESULT = 6;
+
+    private static final AtomicInteger nextTableId = new AtomicInteger();
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * The distinct choice texts of questions [from, to) of a list and the STRINGS frame that
+     * carries them.
+     */
+    static final class StringTable {
+        final int id;
+        final WebSocketEngine.Frame frame;
+        private final Map<String, Integer> index = new HashMap<>();
+
+        StringTable(List<FestivalServer.Question> questions, int from, int to) {
+            this.id = nextTableId.incrementAndGet();
+            Writer strings = new Writer();
+            for (FestivalServer.Question q : questions.subList(from, to)) {
+                for (String choice : q.choices) {
+                    if (index.putIfAbsent(choice, index.size()) == null) strings.string(choice);
+                }
+            }
+            Writer body = new Writer().varint(id).varint(index.size());
+            body.bytes(strings.buf, strings.pos);
+            this.frame = WebSocketEngine.binaryFrame(record(STRINGS, body)).precompress();
+        }
+
+        int indexOf(String choice) {
+            return index.get(choice);
+        }
+    }
+
+    static WebSocketEngine.Frame questionStart(StringTable table, List<FestivalServer.Question> questions, int index) {
+        FestivalServer.Question q = questions.get(index);
+        Writer body = new Writer().varint(table.id).varint(index).varint(questions.size())
+                .string(q.text).varint(q.timeLimitSec).varint(q.choices.length);
+        for (String choice : q.choices) {
+            body.varint(table.indexOf(choice));
+        }
+        return WebSocketEngine.binaryFrame(record(QUESTION_START, body)).precompress();
+    }
+
+    static WebSocketEngine.Frame questionEnd(StringTable table, List<FestivalServer.Question> questions, int index) {
+        FestivalServer.Question q = questions.get(index);
+        Writer body = new Writer().varint(index).varint(q.correctIndex)
+                .varint(table.indexOf(q.choices[q.correctIndex])).optionalString(q.explanation);
+        return WebSocketEngine.binaryFrame(record(QUESTION_END, body)).precompress();
+    }
+
+    static WebSocketEngine.Frame questionTick(int questionId, int remaining) {
+        return WebSocketEngine.binaryFrame(record(QUESTION_TICK, new Writer().varint(questionId).varint(remaining)));
+    }
+
+    static WebSocketEngine.Frame answerAck(Integer questionId, FestivalServer.AnswerResult result) {
+        Writer body = new Writer().varint(questionId == null || questionId < 0 ? 0 : questionId + 1)
+                .varint(result.ordinal());
+        return WebSocketEngine.binaryFrame(record(ANSWER_ACK, body));
+    }
+
+    /**
+     * Encodes the part of quiz.result every player shares, for {@link #quizResult}.
+     */
+    static byte[] resultTail(List<Leaderboard.Entry> top, int total) {
+        Writer tail = new Writer().varint(top.size());
+        for (Leaderboard.Entry e : top) {
+            tail.varint(e.rank).string(e.nickname).zigzag(e.score);
+        }
+        tail.varint(total);
+        return Arrays.copyOf(tail.buf, tail.pos);
+    }
+
+    static WebSocketEngine.Frame quizResult(Leaderboard.Entry personal, byte[] tail) {
+        Writer body = new Writer().string(personal.nickname).zigzag(personal.score).varint(personal.rank)
+                .bytes(tail, tail.length);
+        return WebSocketEngine.binaryFrame(record(QUIZ_RESULT, body));
+    }
+
+    private static byte[] record(int type, Writer body) {
+        Writer out = new Writer();
+        out.buf = new byte[body.pos + 6];
+        out.varint(type).varint(body.pos).bytes(body.buf, body.pos);
+        return Arrays.copyOf(out.buf, out.pos);
+    }
+
+    // Growable byte buffer with the encodings above
+    private static final class Writer {
+        byte[] buf = new byte[64];
+        int pos;
+
+        Writer varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+            return this;
+        }
+
+        Writer zigzag(int value) {
+            return varint((value << 1) ^ (value >> 31));
+        }
+
+        Writer string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            return varint(bytes.length).bytes(bytes, bytes.length);
+        }
+
+        Writer optionalString(String value) {
+            if (value == null) return varint(0);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            return varint(bytes.length + 1).bytes(bytes, bytes.length);
+        }
+
+        Writer bytes(byte[] bytes, int length) {
+            ensure(length);
+            System.arraycopy(bytes, 0, buf, pos, length);
+            pos += length;
+            return this;
+        }
+
+        private void ensure(int more) {
+            if (pos + more > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+        }
+    }
+}
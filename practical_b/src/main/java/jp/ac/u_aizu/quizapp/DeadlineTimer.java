@@ -0,0 +1,158 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel shared by all question deadlines and countdown ticks.
+ * One thread advances the wheel every tick; a deadline lands in the bucket for its tick
+ * (plus a number of full rotations), so scheduling and cancelling are O(1) no matter how
+ * many deadlines are pending. Deadlines fire at most one tick late.
+ * <p>
+ * Tasks run on the wheel thread and must be short; hand real work to another executor
+ * (the session commands go to the session loop).
+ */
+class DeadlineTimer {
+
+    /**
+     * Handle for a scheduled task.
+     */
+    interface Timeout {
+        /**
+         * @return true if the task had not run and now never will
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+    }
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final class Task implements Timeout {
+        final Runnable action;
+        final long deadline; // Nanos since startTime
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        long rounds;
+
+        Task(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            // The wheel thread drops it when it next visits the bucket
+            pending.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Task>[] wheel;
+    private final int mask;
+    private final Queue<Task> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long startTime = System.nanoTime();
+    private long tick; // Wheel thread only
+
+    /**
+     * @param tickMs    resolution; deadlines are rounded up to a tick
+     * @param wheelSize buckets per rotation, rounded up to a power of two
+     */
+    DeadlineTimer(String name, long tickMs, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = buckets(size);
+        this.mask = size - 1;
+
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Java cannot create a List<T>[] directly. The cast is safe: the array never leaves this
+    // class and every slot holds an ArrayList<T> from here
+    @SuppressWarnings("unchecked")
+    private static <T> List<T>[] buckets(int size) {
+        List<T>[] buckets = (List<T>[]) new List<?>[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        return buckets;
+    }
+
+    Timeout schedule(Runnable action, long delay, TimeUnit unit) {
+        Task task = new Task(action, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        incoming.add(task);
+        return task;
+    }
+
+    /**
+     * @return tasks scheduled and neither run nor cancelled yet
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (true) {
+            long target = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = target - (System.nanoTime() - startTime)) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferIncoming();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Task task;
+        while ((task = incoming.poll()) != null) {
+            if (task.isCancelled()) continue;
+            long due = task.deadline / tickNanos;
+            task.rounds = Math.max(0, due - tick) / wheel.length;
+            // Already overdue: fire in the bucket being processed now
+            wheel[(int) (Math.max(due, tick) & mask)].add(task);
+        }
+    }
+
+    // Runs what is due and compacts the survivors in place
+    private void expire(List<Task> bucket) {
+        int kept = 0;
+        for (int i = 0, n = bucket.size(); i < n; i++) {
+            Task task = bucket.get(i);
+            if (task.isCancelled()) continue;
+            if (task.rounds > 0) {
+                task.rounds--;
+                bucket.set(kept++, task);
+            } else if (task.state.compareAndSet(WAITING, EXPIRED)) {
+                pending.decrementAndGet();
+                try {
+                    task.action.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
@@ -0,0 +1,77 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How blocking work (HTTP handlers, background jobs) is run, chosen at startup with
+ * -Dfestival.exec=virtual|platform.
+ * VIRTUAL runs every task on its own virtual thread, so a handler blocked on I/O
+ * (e.g. the OpenAI call) costs no platform thread. It needs JDK 21+; on older
+ * runtimes it falls back to PLATFORM.
+ * PLATFORM is a bounded pool (festival.exec.threads, festival.exec.queue) that rejects
+ * work beyond its queue instead of growing without limit.
+ */
+enum ExecutionMode {
+    VIRTUAL,
+    PLATFORM;
+
+    // Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively so the code still builds on JDK 17
+    private static final MethodHandle NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+
+    static ExecutionMode fromSystemProperties() {
+        String value = System.getProperty("festival.exec", "virtual");
+        if ("platform".equalsIgnoreCase(value)) return PLATFORM;
+        if (!"virtual".equalsIgnoreCase(value)) {
+            System.err.println("Unknown festival.exec=" + value + ", using virtual");
+        }
+        if (NEW_VIRTUAL_EXECUTOR == null) {
+            System.err.println("Virtual threads are not available on Java " + Runtime.version().feature() +
+                    ", using the platform pool");
+            return PLATFORM;
+        }
+        return VIRTUAL;
+    }
+
+    /**
+     * Creates an executor for one kind of work; name prefixes the platform threads.
+     */
+    ExecutorService newExecutor(String name) {
+        if (this == VIRTUAL) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot create virtual thread executor", e);
+            }
+        }
+
+        int threads = Integer.getInteger("festival.exec.threads", 64);
+        int queue = Integer.getInteger("festival.exec.queue", 256);
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static MethodHandle findVirtualExecutorFactory() {
+        // Present but preview-only on 19 and 20
+        if (Runtime.version().feature() < 21) return null;
+        try {
+            return MethodHandles.publicLookup().findStatic(java.util.concurrent.Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
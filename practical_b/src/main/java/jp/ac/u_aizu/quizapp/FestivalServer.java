@@ -1,8 +1,6 @@
 package jp.ac.u_aizu.quizapp;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 import java.io.*;
 import java.net.*;
@@ -10,9 +8,18 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 /**
  * Quiz Festival Server - Museum Event Version
@@ -20,33 +27,91 @@ import java.util.concurrent.*;
  */
 public class FestivalServer {
 
-    private static final int HTTP_PORT = 8080;
-    private static final int WS_PORT = 8081;
-
-    // Quiz Session State
-    private static QuizSession currentSession = new QuizSession();
-
-    // Connected WebSocket clients
-    private static final Map<String, WebSocketClient> clients = new ConcurrentHashMap<>();
-    private static final Map<String, WebSocketClient> hostClients = new ConcurrentHashMap<>();
-
-    // Question bank (loaded from posted quizzes)
-    private static List<Question> questionBank = new ArrayList<>();
+    private static final int HTTP_PORT = Integer.getInteger("festival.port", 8080);
+    private static final long HOST_TICK_MS = Long.getLong("festival.host.tickMs", 100);
+    private static final int QUESTION_TIME_LIMIT_SEC = 60; // Default when a question sets none
+    private static final int QUESTION_TICK_SEC = Integer.getInteger("festival.question.tickSec", 5); // 0 = no ticks
+    // Offer the binary subprotocol to phones; false leaves every socket on JSON
+    private static final boolean BINARY_PROTOCOL = Boolean.parseBoolean(System.getProperty("festival.ws.binary", "true"));
+    private static final int RANKING_PAGE_SIZE = 50;
+    private static final int RANKING_MAX_PAGE_SIZE = 100;
+    private static final long RESULT_PAGE_KEY = -1; // Rendered-page key of /api/result; page keys are >= 0
+    private static final int QUESTIONS_MAX_PAGE_SIZE = 200;
+    private static final int PREPARED_QUESTIONS_MAX = 500; // Questions whose frames a session renders up front
+    private static final String DEFAULT_ROOM = "default";
+    private static final int MAX_ROOMS = Integer.getInteger("festival.rooms.max", 64);
+    private static final Pattern ROOM_CODE = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    // Rooms by code. Each room is pinned to one shard, a SessionLoop that applies every state
+    // change of the rooms on it; rooms on different shards run in parallel.
+    private static final SessionLoop[] shards = createShards(
+            Integer.getInteger("festival.shards", Runtime.getRuntime().availableProcessors()));
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // HTTP and WebSocket share one port and one engine
+    private static WebSocketEngine wsEngine;
+    // Per-endpoint concurrency limits; overload is answered with 429/503 instead of queueing
+    private static final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+
+    // HTTP handlers; see ExecutionMode
+    private static final ExecutionMode executionMode = ExecutionMode.fromSystemProperties();
+
+    // Question deadlines and countdown ticks
+    private static final DeadlineTimer deadlines = new DeadlineTimer("festival-deadlines",
+            Long.getLong("festival.timer.tickMs", 100), 512);
+
+    // Periodic ticks (host counters of every room)
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "festival-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Answer acceptance and points (flat or time-weighted)
+    private static final ScoringEngine scoring = ScoringEngine.fromSystemProperties();
+
+    // Question bank, parsed from the posted quizzes file and swapped in as a whole whenever it changes
+    private static final Path QUIZ_FILE = Paths.get("src/main/resources/data/quizzes.json");
+    private static final AtomicReference<QuestionBank> questionBank = new AtomicReference<>(QuestionBank.EMPTY);
+
+    // Replication: every command that changes a room goes over the bus and is applied, in bus
+    // order, by every node (this one included), so all nodes hold the same sessions and rankings
+    private static final String COMMAND_TOPIC = "festival.commands";
+    private static final long COMMAND_TIMEOUT_MS = 5000;
+    private static final String NODE_ID = System.getProperty("festival.node.id",
+            Long.toString(ThreadLocalRandom.current().nextLong() & 0xFFFFFFFFL, 36));
+    private static MessageBus bus;
+    private static final AtomicLong nextCommand = new AtomicLong();
+    private static final Map<Long, CompletableFuture<Object>> pendingCommands = new ConcurrentHashMap<>();
+
+    // Write-ahead journal of applied commands (-Dfestival.journal=path|none); replayed on startup
+    private static Journal journal;
+    private static volatile boolean replaying; // Question timers are started after replay
+
+    // Binary snapshots next to the journal (-Dfestival.snapshot.intervalSec, 0 = none); startup
+    // loads the newest one and replays only the journal entries after it
+    private static final long SNAPSHOT_INTERVAL_SEC = Long.getLong("festival.snapshot.intervalSec", 30);
+    private static SnapshotFile snapshots;
+    private static long snapshotOffset = -1; // Journal offset of the last snapshot (snapshot thread only)
+    private static final AtomicLong snapshotsWritten = new AtomicLong();
+    private static volatile long lastSnapshotMicros;
 
     public static void main(String[] args) throws Exception {
         // Load existing quiz data
         loadQuestionBank();
+        watchQuestionBank();
+        roomFor(DEFAULT_ROOM, true);
 
-        // Start HTTP Server
-        HttpServer httpServer = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
-        setupHttpEndpoints(httpServer);
-        httpServer.setExecutor(Executors.newCachedThreadPool());
-        httpServer.start();
-        System.out.println("HTTP Server started: http://localhost:" + HTTP_PORT);
+        bus = MessageBus.fromSystemProperties();
+        openJournal();
+        bus.subscribe(COMMAND_TOPIC, FestivalServer::onCommand);
 
-        // Start WebSocket Server
-        new Thread(() -> startWebSocketServer()).start();
-        System.out.println("WebSocket Server started: ws://localhost:" + WS_PORT);
+        // Start HTTP + WebSocket Server
+        startServer();
+        System.out.println("Server started: http://localhost:" + HTTP_PORT +
+                " (WebSocket: ws://localhost:" + HTTP_PORT + "/ws, " + wsEngine.getIoThreadCount() + " I/O threads, " +
+                shards.length + " session shards, " + executionMode.name().toLowerCase() + " handler threads, node " +
+                NODE_ID + ", bus " + System.getProperty("festival.bus", "local") + ")");
 
         System.out.println("\n=== Quiz Festival Server Ready ===");
         System.out.println("Host URL: http://localhost:" + HTTP_PORT + "/host.html");
@@ -57,347 +122,523 @@ public class FestivalServer {
     // HTTP Endpoints
     // ========================
 
-    private static void setupHttpEndpoints(HttpServer server) {
-        // Static files
-        server.createContext("/", new StaticFileHandler());
+    private static void setupHttpEndpoints(WebSocketEngine server) {
+        // Static files, read once and served from memory
+        StaticAssets assets = new StaticAssets(Paths.get("src/main/resources/static"), "index.html");
+        assets.watch("festival-static-watcher");
+        server.createContext("/", admission.limit("static", AdmissionControl.Priority.NORMAL, 128, assets));
 
         // Join session
-        server.createContext("/api/join", ex -> {
+        server.createContext("/api/join", admission.limit("join", AdmissionControl.Priority.NORMAL, 64, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
-                String body = readBody(ex);
-                String nickname = extractJsonField(body, "nickname");
-                if (nickname == null || nickname.isEmpty()) {
-                    nickname = "Player" + (currentSession.players.size() + 1);
+                Map<String, String> body = Json.fields(readBody(ex));
+                Room room = requestRoom(ex, body);
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
+                    return;
                 }
+                String nickname = body.get("nickname");
 
-                Player player = new Player(generatePlayerId(), nickname);
-                currentSession.players.put(player.id, player);
-
-                String response = String.format("{\"playerId\":\"%s\",\"nickname\":\"%s\",\"status\":\"%s\"}",
-                        player.id, player.nickname, currentSession.state.name());
-                sendJson(ex, 200, response);
-
-                // Notify hosts about new player
-                broadcastToHosts("{\"type\":\"player.joined\",\"count\":" + currentSession.players.size() +
-                        ",\"nickname\":\"" + escapeJson(player.nickname) + "\"}");
+                String playerId = generatePlayerId();
+                Player player = (Player) await(replicate(room, "join", json -> {
+                    json.field("playerId", playerId);
+                    if (nickname != null) json.field("nickname", nickname);
+                }));
+                if (player == null) {
+                    sendJson(ex, 503, "{\"error\":\"Session unavailable\"}");
+                    return;
+                }
+                sendJson(ex, 200, new Json.Writer().beginObject()
+                        .field("playerId", player.id)
+                        .field("nickname", player.nickname)
+                        .field("room", room.code)
+                        .field("status", room.snapshot.state.name())
+                        .endObject());
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
-        });
+        }));
 
         // Submit answer
-        server.createContext("/api/answer", ex -> {
+        server.createContext("/api/answer", admission.limit("answer", AdmissionControl.Priority.HIGH, 128, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
-                String body = readBody(ex);
-                String playerId = extractJsonField(body, "playerId");
-                String choiceStr = extractJsonField(body, "choice");
-                String questionIdStr = extractJsonField(body, "questionId");
-
-                if (currentSession.state != QuizState.QUESTION_ACTIVE) {
-                    sendJson(ex, 400, "{\"error\":\"No active question\"}");
+                Map<String, String> body = Json.fields(readBody(ex));
+                Room room = requestRoom(ex, body);
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
                     return;
                 }
-
-                Player player = currentSession.players.get(playerId);
-                if (player == null) {
-                    sendJson(ex, 404, "{\"error\":\"Player not found\"}");
+                String playerId = body.get("playerId");
+                String choiceStr = body.get("choice");
+                String questionIdStr = body.get("questionId");
+
+                Integer questionId = parseIntOrNull(questionIdStr);
+                Integer choice = parseIntOrNull(choiceStr);
+                if (questionId == null || choice == null) {
+                    sendJson(ex, 400, "{\"error\":\"Invalid answer\"}");
                     return;
                 }
 
-                int questionId = Integer.parseInt(questionIdStr);
-                int choice = Integer.parseInt(choiceStr);
-
-                // Record answer
-                Answer answer = new Answer(playerId, questionId, choice, System.currentTimeMillis());
-                currentSession.answers.computeIfAbsent(questionId, k -> new ConcurrentHashMap<>())
-                        .put(playerId, answer);
-
-                // Check if correct
-                Question currentQ = currentSession.getCurrentQuestion();
-                boolean correct = currentQ != null && currentQ.correctIndex == choice;
-                if (correct) {
-                    player.score++;
+                AnswerResult result = (AnswerResult) await(replicate(room, "answer", answerFields(playerId, questionId, choice)));
+                if (result == null) {
+                    sendJson(ex, 503, "{\"error\":\"Session unavailable\"}");
+                    return;
+                }
+                switch (result) {
+                    case NO_ACTIVE_QUESTION:
+                        sendJson(ex, 400, "{\"error\":\"No active question\"}");
+                        return;
+                    case PLAYER_NOT_FOUND:
+                        sendJson(ex, 404, "{\"error\":\"Player not found\"}");
+                        return;
+                    case DUPLICATE:
+                        sendJson(ex, 409, "{\"error\":\"Already answered\"}");
+                        return;
+                    case INVALID:
+                        sendJson(ex, 400, "{\"error\":\"Invalid answer\"}");
+                        return;
+                    default:
+                        sendJson(ex, 200, "{\"received\":true}");
                 }
-
-                sendJson(ex, 200, "{\"received\":true}");
-
-                // Update hosts with answer count
-                int answeredCount = currentSession.answers.getOrDefault(questionId, new ConcurrentHashMap<>()).size();
-                broadcastToHosts("{\"type\":\"answer.received\",\"count\":" + answeredCount +
-                        ",\"total\":" + currentSession.players.size() + "}");
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
-        });
+        }));
 
         // Get results
-        server.createContext("/api/result", ex -> {
+        server.createContext("/api/result", admission.limit("result", AdmissionControl.Priority.NORMAL, 64, ex -> {
             if ("GET".equals(ex.getRequestMethod())) {
                 String query = ex.getRequestURI().getQuery();
                 String playerId = null;
                 if (query != null && query.contains("playerId=")) {
                     playerId = query.split("playerId=")[1].split("&")[0];
                 }
-
-                List<Player> ranking = new ArrayList<>(currentSession.players.values());
-                ranking.sort((a, b) -> {
-                    if (b.score != a.score) return b.score - a.score;
-                    return Long.compare(a.joinedAt, b.joinedAt);
-                });
+                Room room = requestRoom(ex, null);
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
+                    return;
+                }
 
                 StringBuilder sb = new StringBuilder("{");
 
-                // Personal score
+                // Personal score: an O(log n) rank lookup
                 if (playerId != null) {
-                    Player p = currentSession.players.get(playerId);
-                    if (p != null) {
-                        int rank = ranking.indexOf(p) + 1;
-                        sb.append("\"personal\":{\"nickname\":\"").append(escapeJson(p.nickname))
-                          .append("\",\"score\":").append(p.score)
-                          .append(",\"rank\":").append(rank).append("},");
+                    Leaderboard.Entry e = room.session.leaderboard.entry(playerId);
+                    if (e != null) {
+                        sb.append("\"personal\":{\"nickname\":\"").append(Json.escape(e.nickname))
+                          .append("\",\"score\":").append(e.score)
+                          .append(",\"rank\":").append(e.rank).append("},");
                     }
                 }
 
-                // Top 3
-                sb.append("\"top3\":[");
-                for (int i = 0; i < Math.min(3, ranking.size()); i++) {
-                    Player p = ranking.get(i);
-                    if (i > 0) sb.append(",");
-                    sb.append("{\"rank\":").append(i + 1)
-                      .append(",\"nickname\":\"").append(escapeJson(p.nickname))
-                      .append("\",\"score\":").append(p.score).append("}");
-                }
-                sb.append("],");
-
-                // Full ranking
-                sb.append("\"ranking\":[");
-                for (int i = 0; i < ranking.size(); i++) {
-                    Player p = ranking.get(i);
-                    if (i > 0) sb.append(",");
-                    sb.append("{\"rank\":").append(i + 1)
-                      .append(",\"nickname\":\"").append(escapeJson(p.nickname))
-                      .append("\",\"score\":").append(p.score).append("}");
-                }
-                sb.append("]}");
+                // Top 3 and the first ranking page, shared by every request until the leaderboard changes
+                sb.append(room.session.resultPage()).append("}");
 
                 sendJson(ex, 200, sb.toString());
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
-        });
+        }));
+
+        // Final ranking, one page at a time (cached per leaderboard version)
+        server.createContext("/api/ranking", admission.limit("ranking", AdmissionControl.Priority.NORMAL, 64, ex -> {
+            if ("GET".equals(ex.getRequestMethod())) {
+                String query = ex.getRequestURI().getQuery();
+                Integer page = parseIntOrNull(queryParam(query, "page"));
+                Integer size = parseIntOrNull(queryParam(query, "size"));
+                int p = page == null ? 0 : Math.max(0, page);
+                int n = size == null ? RANKING_PAGE_SIZE : Math.max(1, Math.min(RANKING_MAX_PAGE_SIZE, size));
+                Room room = requestRoom(ex, null);
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
+                    return;
+                }
+                sendJson(ex, 200, room.session.rankingPage(p, n));
+            } else {
+                sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
+            }
+        }));
 
         // Host: Get session status
-        server.createContext("/api/session/status", ex -> {
+        server.createContext("/api/session/status", admission.limit("status", AdmissionControl.Priority.HIGH, 128, ex -> {
             if ("GET".equals(ex.getRequestMethod())) {
-                StringBuilder sb = new StringBuilder("{");
-                sb.append("\"state\":\"").append(currentSession.state.name()).append("\",");
-                sb.append("\"playerCount\":").append(currentSession.players.size()).append(",");
-                sb.append("\"currentQuestionIndex\":").append(currentSession.currentQuestionIndex).append(",");
-                sb.append("\"totalQuestions\":").append(currentSession.questions.size()).append(",");
-                if (currentSession.getCurrentQuestion() != null) {
-                    Question q = currentSession.getCurrentQuestion();
-                    sb.append("\"currentQuestion\":{");
-                    sb.append("\"id\":").append(q.id).append(",");
-                    sb.append("\"text\":\"").append(escapeJson(q.text)).append("\",");
-                    sb.append("\"choices\":[");
-                    for (int i = 0; i < q.choices.length; i++) {
-                        if (i > 0) sb.append(",");
-                        sb.append("\"").append(escapeJson(q.choices[i])).append("\"");
-                    }
-                    sb.append("]},");
+                Room room = requestRoom(ex, null);
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
+                    return;
                 }
-                int answered = 0;
-                if (currentSession.state == QuizState.QUESTION_ACTIVE && currentSession.currentQuestionIndex >= 0) {
-                    answered = currentSession.answers.getOrDefault(
-                            currentSession.currentQuestionIndex, new ConcurrentHashMap<>()).size();
+                SessionSnapshot session = room.snapshot;
+                Json.Writer json = new Json.Writer().beginObject()
+                        .field("room", room.code)
+                        .field("state", session.state.name())
+                        .field("playerCount", session.playerCount)
+                        .field("currentQuestionIndex", session.currentQuestionIndex)
+                        .field("totalQuestions", session.questions.size());
+                Question q = session.currentQuestion();
+                if (q != null) {
+                    json.name("currentQuestion").beginObject()
+                        .field("id", q.id)
+                        .field("text", q.text)
+                        .name("choices").beginArray();
+                    for (String choice : q.choices) {
+                        json.value(choice);
+                    }
+                    json.endArray().endObject();
                 }
-                sb.append("\"answeredCount\":").append(answered);
-                sb.append("}");
-                sendJson(ex, 200, sb.toString());
+                int answered = session.state == QuizState.QUESTION_ACTIVE ? session.answeredCount() : 0;
+                sendJson(ex, 200, json.field("answeredCount", answered).endObject());
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
-        });
+        }));
 
         // Host: Reset session
-        server.createContext("/api/session/reset", ex -> {
+        server.createContext("/api/session/reset", admission.limit("reset", AdmissionControl.Priority.HIGH, 4, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
-                currentSession = new QuizSession();
-                loadQuestionBank();
-                broadcastToAll("{\"type\":\"session.reset\"}");
+                Room room = requestRoom(ex, Json.fields(readBody(ex)));
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
+                    return;
+                }
+                if (!replicate(room, "reset").handle((r, e) -> e == null).join()) {
+                    sendJson(ex, 503, "{\"error\":\"Session unavailable\"}");
+                    return;
+                }
                 sendJson(ex, 200, "{\"success\":true}");
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
-        });
+        }));
 
-        // Get question bank
-        server.createContext("/api/questions", ex -> {
+        // Question bank: the whole array (pre-serialized and pre-gzipped per bank), or one page of
+        // it with ?page=&size= and an optional text filter &q=. Clients revalidate with If-None-Match.
+        server.createContext("/api/questions", admission.limit("questions", AdmissionControl.Priority.LOW, 16, ex -> {
             if ("GET".equals(ex.getRequestMethod())) {
-                StringBuilder sb = new StringBuilder("[");
-                for (int i = 0; i < questionBank.size(); i++) {
-                    Question q = questionBank.get(i);
-                    if (i > 0) sb.append(",");
-                    sb.append("{\"id\":").append(q.id)
-                      .append(",\"text\":\"").append(escapeJson(q.text))
-                      .append("\",\"choices\":[");
-                    for (int j = 0; j < q.choices.length; j++) {
-                        if (j > 0) sb.append(",");
-                        sb.append("\"").append(escapeJson(q.choices[j])).append("\"");
-                    }
-                    sb.append("],\"correctIndex\":").append(q.correctIndex).append("}");
+                QuestionBank bank = questionBank.get();
+                String query = ex.getRequestURI().getRawQuery();
+                String pageParam = queryParam(query, "page");
+                String sizeParam = queryParam(query, "size");
+                String filter = queryParam(query, "q");
+                boolean paged = pageParam != null || sizeParam != null || filter != null;
+
+                boolean gzip = !paged && StaticAssets.acceptsGzip(ex);
+                String etag = bank.etag();
+                if (paged) {
+                    // Same bank and same query, same page
+                    etag = etag.substring(0, etag.length() - 1) + "-" + Integer.toHexString(query.hashCode()) + "\"";
+                } else if (gzip) {
+                    etag = StaticAssets.gzipEtag(etag);
+                }
+                ex.getResponseHeaders().set("ETag", etag);
+                ex.getResponseHeaders().set("Cache-Control", "no-cache");
+                ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+                String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+                if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+                    ex.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                    ex.sendResponseHeaders(304, -1);
+                    ex.close();
+                    return;
+                }
+
+                if (paged) {
+                    Integer page = parseIntOrNull(pageParam);
+                    Integer size = parseIntOrNull(sizeParam);
+                    int p = page == null ? 0 : Math.max(0, page);
+                    int n = size == null ? QUESTIONS_MAX_PAGE_SIZE : Math.max(1, Math.min(QUESTIONS_MAX_PAGE_SIZE, size));
+                    sendJson(ex, 200, bank.page(filter == null ? null : URLDecoder.decode(filter, StandardCharsets.UTF_8), p, n));
+                } else if (gzip) {
+                    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                    sendJson(ex, 200, bank.gzippedJson());
+                } else {
+                    sendJson(ex, 200, bank.json());
                 }
-                sb.append("]");
-                sendJson(ex, 200, sb.toString());
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
-        });
+        }));
 
         // Host: Set questions for session
-        server.createContext("/api/session/questions", ex -> {
+        server.createContext("/api/session/questions", admission.limit("sessionQuestions", AdmissionControl.Priority.HIGH, 4, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
                 String body = readBody(ex);
-                // Parse question IDs from body
-                List<Integer> ids = parseIntArray(body);
-                currentSession.questions.clear();
-                for (int id : ids) {
-                    for (Question q : questionBank) {
-                        if (q.id == id) {
-                            currentSession.questions.add(q);
-                            break;
-                        }
+                // The body is a bare array of IDs, so the room comes from the query string
+                Room room = requestRoom(ex, null);
+                if (room == null) {
+                    sendJson(ex, 404, "{\"error\":\"Room not found\"}");
+                    return;
+                }
+                // Resolved here and replicated in full, so every node and every replay gets the
+                // same questions whatever quizzes.json holds by then
+                QuestionBank bank = questionBank.get();
+                List<Question> selected = new ArrayList<>();
+                try {
+                    Json.Reader reader = new Json.Reader(body);
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Question q = bank.get(reader.nextInt());
+                        if (q != null) selected.add(q);
                     }
+                    reader.endArray();
+                    reader.endDocument();
+                } catch (IllegalArgumentException e) {
+                    sendJson(ex, 400, "{\"error\":\"Expected an array of question IDs\"}");
+                    return;
+                }
+                Object count = await(replicate(room, "questions", json -> writeQuestions(json, selected)));
+                if (count == null) {
+                    sendJson(ex, 503, "{\"error\":\"Session unavailable\"}");
+                    return;
                 }
-                sendJson(ex, 200, "{\"success\":true,\"count\":" + currentSession.questions.size() + "}");
+                sendJson(ex, 200, "{\"success\":true,\"count\":" + count + "}");
+            } else {
+                sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
+            }
+        }));
+
+        // Server: WebSocket connection, send-queue and admission metrics. Not limited, so it still answers under overload
+        server.createContext("/api/server/stats", ex -> {
+            if ("GET".equals(ex.getRequestMethod())) {
+                StringBuilder sb = new StringBuilder("{");
+                sb.append("\"connections\":").append(wsEngine.getConnectionCount()).append(",");
+                sb.append("\"sockets\":").append(wsEngine.getSocketCount()).append(",");
+                sb.append("\"httpRequests\":").append(wsEngine.getHttpRequests()).append(",");
+                sb.append("\"httpRejected\":").append(wsEngine.getHttpRejected()).append(",");
+                sb.append("\"ioThreads\":").append(wsEngine.getIoThreadCount()).append(",");
+                sb.append("\"queuedFrames\":").append(wsEngine.getQueuedFrames()).append(",");
+                sb.append("\"peakQueueDepth\":").append(wsEngine.getPeakQueueDepth()).append(",");
+                sb.append("\"framesWritten\":").append(wsEngine.getFramesWritten()).append(",");
+                sb.append("\"droppedQueueFull\":").append(wsEngine.getDroppedQueueFull()).append(",");
+                sb.append("\"droppedWriteDeadline\":").append(wsEngine.getDroppedDeadline()).append(",");
+                sb.append("\"droppedHeartbeat\":").append(wsEngine.getDroppedHeartbeat()).append(",");
+                sb.append("\"pendingDeadlines\":").append(deadlines.pending()).append(",");
+                sb.append("\"rooms\":").append(rooms.size()).append(",");
+                sb.append("\"shards\":").append(shards.length).append(",");
+                sb.append("\"node\":\"").append(NODE_ID).append("\",");
+                sb.append("\"journalEntries\":").append(journal == null ? 0 : journal.getEntries()).append(",");
+                sb.append("\"journalSyncs\":").append(journal == null ? 0 : journal.getSyncs()).append(",");
+                sb.append("\"snapshots\":").append(snapshotsWritten.get()).append(",");
+                sb.append("\"lastSnapshotMicros\":").append(lastSnapshotMicros).append(",");
+                sb.append("\"admission\":").append(admission.toJson());
+                sb.append("}");
+                sendJson(ex, 200, sb.toString());
             } else {
                 sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
             }
         });
+
+        // Rooms currently open
+        server.createContext("/api/rooms", admission.limit("rooms", AdmissionControl.Priority.NORMAL, 32, ex -> {
+            if ("GET".equals(ex.getRequestMethod())) {
+                StringBuilder sb = new StringBuilder("[");
+                for (Room room : rooms.values()) {
+                    SessionSnapshot session = room.snapshot;
+                    if (sb.length() > 1) sb.append(",");
+                    sb.append("{\"room\":\"").append(room.code)
+                      .append("\",\"state\":\"").append(session.state.name())
+                      .append("\",\"playerCount\":").append(session.playerCount).append("}");
+                }
+                sb.append("]");
+                sendJson(ex, 200, sb.toString());
+            } else {
+                sendJson(ex, 405, "{\"error\":\"Method Not Allowed\"}");
+            }
+        }));
     }
 
     // ========================
-    // WebSocket Server
+    // Rooms
     // ========================
 
-    private static void startWebSocketServer() {
-        try (ServerSocket serverSocket = new ServerSocket(WS_PORT)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleWebSocketConnection(clientSocket)).start();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static SessionLoop[] createShards(int count) {
+        SessionLoop[] loops = new SessionLoop[Math.max(1, count)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SessionLoop("festival-shard-" + i);
         }
+        return loops;
     }
 
-    private static void handleWebSocketConnection(Socket socket) {
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            OutputStream out = socket.getOutputStream();
-
-            // Read HTTP upgrade request
-            StringBuilder requestBuilder = new StringBuilder();
-            String line;
-            String wsKey = null;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                requestBuilder.append(line).append("\r\n");
-                if (line.startsWith("Sec-WebSocket-Key:")) {
-                    wsKey = line.substring(19).trim();
-                }
-            }
-
-            if (wsKey == null) {
-                socket.close();
-                return;
-            }
-
-            // Calculate accept key
-            String acceptKey = calculateWebSocketAccept(wsKey);
+    /**
+     * Looks up a room by code (the default room when code is null).
+     *
+     * @param create open the room if it does not exist yet, up to MAX_ROOMS
+     * @return the room, or null if the code is invalid, the room does not exist, or there are too many rooms
+     */
+    private static Room roomFor(String code, boolean create) {
+        if (code == null || code.isEmpty()) code = DEFAULT_ROOM;
+        if (!ROOM_CODE.matcher(code).matches()) return null;
+        Room room = rooms.get(code);
+        if (room != null || !create || rooms.size() >= MAX_ROOMS) return room;
+        return rooms.computeIfAbsent(code, c -> new Room(c, shards[Math.floorMod(c.hashCode(), shards.length)]));
+    }
 
-            // Send handshake response
-            String response = "HTTP/1.1 101 Switching Protocols\r\n" +
-                    "Upgrade: websocket\r\n" +
-                    "Connection: Upgrade\r\n" +
-                    "Sec-WebSocket-Accept: " + acceptKey + "\r\n\r\n";
-            out.write(response.getBytes(StandardCharsets.UTF_8));
-            out.flush();
+    // The room named by the "room" query parameter, else by the JSON body's "room" field
+    private static Room requestRoom(HttpExchange ex, Map<String, String> body) {
+        String code = queryParam(ex.getRequestURI().getQuery(), "room");
+        if (code == null && body != null) code = body.get("room");
+        return roomFor(code, false);
+    }
 
-            String clientId = UUID.randomUUID().toString();
-            WebSocketClient client = new WebSocketClient(clientId, socket, out);
-            clients.put(clientId, client);
+    // ========================
+    // WebSocket Server
+    // ========================
 
-            System.out.println("WebSocket client connected: " + clientId);
+    private static void startServer() throws IOException {
+        WebSocketEngine.Listener listener = new WebSocketEngine.Listener() {
+            @Override
+            public void onOpen(WebSocketEngine.Connection conn) {
+                // Opening /ws?room=CODE opens the room if needed (on every node); without a code, the default room
+                String code = queryParam(conn.getRequestUri().getQuery(), "room");
+                Room room = roomFor(code, false);
+                if (room == null) {
+                    room = roomFor(code, true);
+                    if (room != null) replicate(room, "open");
+                }
+                if (room == null) {
+                    conn.send(WebSocketEngine.textFrame("{\"type\":\"error\",\"message\":\"Room not available\"}"));
+                    conn.close(WebSocketEngine.CLOSE_POLICY_VIOLATION, "Room not available");
+                    return;
+                }
 
-            // Send welcome message
-            sendWebSocketMessage(client, "{\"type\":\"connected\",\"clientId\":\"" + clientId +
-                    "\",\"state\":\"" + currentSession.state.name() + "\"}");
+                String clientId = UUID.randomUUID().toString();
+                WebSocketClient client = new WebSocketClient(clientId, conn, room);
+                conn.attach(client);
+                room.clients.put(clientId, client);
 
-            // Read messages
-            InputStream in = socket.getInputStream();
-            while (!socket.isClosed()) {
-                String message = readWebSocketMessage(in);
-                if (message == null) break;
+                System.out.println("WebSocket client connected: " + clientId + " (room " + room.code + ")");
 
-                handleWebSocketMessage(client, message);
+                // Send welcome message
+                sendWebSocketMessage(client, "{\"type\":\"connected\",\"clientId\":\"" + clientId +
+                        "\",\"room\":\"" + room.code + "\",\"state\":\"" + room.snapshot.state.name() + "\"}");
             }
 
-            clients.remove(clientId);
-            hostClients.remove(clientId);
-            System.out.println("WebSocket client disconnected: " + clientId);
+            @Override
+            public void onMessage(WebSocketEngine.Connection conn, String message) {
+                handleWebSocketMessage((WebSocketClient) conn.attachment(), message);
+            }
 
-        } catch (Exception e) {
-            // Client disconnected
-        }
+            @Override
+            public void onClose(WebSocketEngine.Connection conn) {
+                WebSocketClient client = (WebSocketClient) conn.attachment();
+                if (client == null) return;
+                client.room.clients.remove(client.id);
+                client.room.hosts.remove(client.id);
+                System.out.println("WebSocket client disconnected: " + client.id);
+            }
+        };
+
+        WebSocketEngine.Config config = WebSocketEngine.Config.fromSystemProperties();
+        config.subprotocols = BINARY_PROTOCOL ? List.of(BinaryProtocol.NAME, BinaryProtocol.JSON_NAME)
+                : List.of(BinaryProtocol.JSON_NAME);
+        wsEngine = new WebSocketEngine(HTTP_PORT, config, listener);
+        setupHttpEndpoints(wsEngine);
+        wsEngine.setExecutor(executionMode.newExecutor("festival-http"));
+        wsEngine.start();
     }
 
+    // The only members a client message is read for
+    static final String[] CLIENT_FIELDS = {"type", "playerId", "questionId", "choice"};
+
     private static void handleWebSocketMessage(WebSocketClient client, String message) {
         try {
-            String type = extractJsonField(message, "type");
+            // One pass into locals rather than a field map: answer.submit is the hottest message there is
+            String type = null;
+            String playerId = null;
+            Integer questionId = null;
+            Integer choice = null;
+            try {
+                Json.Reader reader = new Json.Reader(message);
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName(CLIENT_FIELDS);
+                    if (name == null) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    switch (name) {
+                        case "type":
+                            if (type == null) type = reader.nextScalar(); else reader.skipValue();
+                            break;
+                        case "playerId":
+                            if (playerId == null) playerId = reader.nextScalar(); else reader.skipValue();
+                            break;
+                        case "questionId":
+                            if (questionId == null) questionId = nextIntOrNull(reader); else reader.skipValue();
+                            break;
+                        case "choice":
+                            if (choice == null) choice = nextIntOrNull(reader); else reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+                reader.endDocument();
+            } catch (IllegalArgumentException e) {
+                return;
+            }
             if (type == null) return;
 
+            // Every message applies to the room the socket was opened for
+            Room room = client.room;
             switch (type) {
                 case "host.register":
-                    hostClients.put(client.id, client);
-                    sendWebSocketMessage(client, "{\"type\":\"host.registered\",\"playerCount\":" +
-                            currentSession.players.size() + "}");
+                    room.hosts.put(client.id, client);
+                    room.hostNotifier.reset();
+                    sendWebSocketMessage(client, "{\"type\":\"host.registered\",\"room\":\"" + room.code +
+                            "\",\"playerCount\":" + room.snapshot.playerCount + "}");
                     break;
 
-                case "host.startQuiz":
-                    if (currentSession.questions.isEmpty()) {
-                        // Use all questions from bank if none selected
-                        currentSession.questions.addAll(questionBank);
-                    }
-                    if (currentSession.questions.isEmpty()) {
-                        sendWebSocketMessage(client, "{\"type\":\"error\",\"message\":\"No questions available\"}");
-                        return;
-                    }
-                    currentSession.state = QuizState.WAIT_JOIN;
-                    broadcastToAll("{\"type\":\"quiz.starting\"}");
+                case "host.startQuiz": {
+                    // Without a selection the quiz uses the whole bank as it is now, carried in the command
+                    List<Question> all = room.snapshot.questions.isEmpty() ? questionBank.get().all() : List.of();
+                    replicate(room, "startQuiz", json -> writeQuestions(json, all)).thenAccept(started -> {
+                        if (!(Boolean) started) {
+                            sendWebSocketMessage(client, "{\"type\":\"error\",\"message\":\"No questions available\"}");
+                        }
+                    });
                     break;
+                }
 
                 case "host.openJoin":
-                    currentSession.state = QuizState.WAIT_JOIN;
-                    broadcastToAll("{\"type\":\"session.waitingForPlayers\"}");
+                    replicate(room, "openJoin");
                     break;
 
                 case "host.nextQuestion":
-                    advanceQuestion();
+                    replicate(room, "nextQuestion");
                     break;
 
                 case "host.endQuestion":
-                    endCurrentQuestion();
+                    replicate(room, "endQuestion");
                     break;
 
                 case "host.showResult":
-                    currentSession.state = QuizState.RESULT;
-                    broadcastToAll("{\"type\":\"quiz.finish\"}");
+                    replicate(room, "showResult");
                     break;
 
                 case "host.endQuiz":
-                    currentSession.state = QuizState.END;
-                    broadcastToAll("{\"type\":\"quiz.ended\"}");
+                    replicate(room, "endQuiz");
+                    break;
+
+                case "player.bind": {
+                    // Ties this socket to a joined player so answers can be sent without an HTTP round trip
+                    boolean bound = playerId != null && room.session.players.containsKey(playerId);
+                    if (bound) client.playerId = playerId;
+                    sendWebSocketMessage(client, "{\"type\":\"player.bound\",\"ok\":" + bound + "}");
+                    break;
+                }
+
+                case "answer.submit": {
+                    String boundPlayer = client.playerId;
+                    Integer answered = questionId;
+                    if (boundPlayer == null) {
+                        sendAnswerAck(client, answered, AnswerResult.PLAYER_NOT_FOUND);
+                    } else if (answered == null || choice == null) {
+                        sendAnswerAck(client, answered, AnswerResult.INVALID);
+                    } else {
+                        // Acknowledged once this node has applied it; the I/O loop does not wait
+                        replicate(room, "answer", answerFields(boundPlayer, answered, choice))
+                                .thenAccept(result -> sendAnswerAck(client, answered, (AnswerResult) result));
+                    }
                     break;
+                }
 
                 case "ping":
                     sendWebSocketMessage(client, "{\"type\":\"pong\"}");
@@ -408,156 +649,669 @@ public class FestivalServer {
         }
     }
 
-    private static void advanceQuestion() {
-        currentSession.currentQuestionIndex++;
-        if (currentSession.currentQuestionIndex >= currentSession.questions.size()) {
-            currentSession.state = QuizState.RESULT;
-            broadcastToAll("{\"type\":\"quiz.finish\"}");
+    private static void sendAnswerAck(WebSocketClient client, Integer questionId, AnswerResult result) {
+        if (client.binary) {
+            sendFrame(client, BinaryProtocol.answerAck(questionId, result));
             return;
         }
+        StringBuilder ack = new StringBuilder("{\"type\":\"answer.ack\",\"questionId\":")
+                .append(questionId).append(",\"ok\":").append(result == AnswerResult.ACCEPTED);
+        if (result != AnswerResult.ACCEPTED) {
+            ack.append(",\"reason\":\"").append(result.name()).append("\"");
+        }
+        sendWebSocketMessage(client, ack.append("}").toString());
+    }
 
-        currentSession.state = QuizState.QUESTION_ACTIVE;
-        currentSession.questionStartTime = System.currentTimeMillis();
-
-        Question q = currentSession.getCurrentQuestion();
-        StringBuilder sb = new StringBuilder("{\"type\":\"question.start\",");
-        sb.append("\"questionId\":").append(currentSession.currentQuestionIndex).append(",");
-        sb.append("\"questionNumber\":").append(currentSession.currentQuestionIndex + 1).append(",");
-        sb.append("\"totalQuestions\":").append(currentSession.questions.size()).append(",");
-        sb.append("\"text\":\"").append(escapeJson(q.text)).append("\",");
-        sb.append("\"choices\":[");
-        for (int i = 0; i < q.choices.length; i++) {
+    private static void appendRanking(StringBuilder sb, List<Leaderboard.Entry> entries) {
+        sb.append("[");
+        for (int i = 0; i < entries.size(); i++) {
+            Leaderboard.Entry e = entries.get(i);
             if (i > 0) sb.append(",");
-            sb.append("\"").append(escapeJson(q.choices[i])).append("\"");
+            sb.append("{\"rank\":").append(e.rank)
+              .append(",\"nickname\":\"").append(Json.escape(e.nickname))
+              .append("\",\"score\":").append(e.score).append("}");
         }
-        sb.append("],\"timeLimit\":60}");
+        sb.append("]");
+    }
 
-        broadcastToAll(sb.toString());
+    // ========================
+    // Replication
+    // ========================
 
-        // Schedule auto-end after 60 seconds
-        new Thread(() -> {
-            try {
-                Thread.sleep(60000);
-                if (currentSession.state == QuizState.QUESTION_ACTIVE &&
-                    currentSession.getCurrentQuestion() == q) {
-                    endCurrentQuestion();
-                }
-            } catch (InterruptedException e) {
-                // Timer cancelled
-            }
-        }).start();
+    /**
+     * Publishes a command for a room. Every node applies it on the room's shard; the returned
+     * future completes with the result once this node has, or fails after COMMAND_TIMEOUT_MS.
+     *
+     * @param fields writes the command's own members into the open command object
+     */
+    private static CompletableFuture<Object> replicate(Room room, String command, Consumer<Json.Writer> fields) {
+        long id = nextCommand.incrementAndGet();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        pendingCommands.put(id, result);
+        Json.Writer json = new Json.Writer(160).beginObject()
+                .field("room", room.code).field("origin", NODE_ID).field("id", id)
+                .field("cmd", command).field("at", System.currentTimeMillis());
+        fields.accept(json);
+        bus.publish(COMMAND_TOPIC, json.endObject().toString());
+        return result.orTimeout(COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((r, e) -> pendingCommands.remove(id));
     }
 
-    private static void endCurrentQuestion() {
-        if (currentSession.state != QuizState.QUESTION_ACTIVE) return;
+    private static CompletableFuture<Object> replicate(Room room, String command) {
+        return replicate(room, command, json -> { });
+    }
 
-        currentSession.state = QuizState.QUESTION_CLOSED;
-        Question q = currentSession.getCurrentQuestion();
+    // The command's result, or null if it was not applied in time
+    private static Object await(CompletableFuture<Object> command) {
+        try {
+            return command.join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
 
-        StringBuilder sb = new StringBuilder("{\"type\":\"question.end\",");
-        sb.append("\"questionId\":").append(currentSession.currentQuestionIndex).append(",");
-        sb.append("\"correctIndex\":").append(q.correctIndex).append(",");
-        sb.append("\"correctAnswer\":\"").append(escapeJson(q.choices[q.correctIndex])).append("\"");
-        if (q.explanation != null) {
-            sb.append(",\"explanation\":\"").append(escapeJson(q.explanation)).append("\"");
+    private static Consumer<Json.Writer> answerFields(String playerId, int questionId, int choice) {
+        return json -> {
+            json.field("questionId", questionId).field("choice", choice);
+            if (playerId != null) json.field("playerId", playerId);
+        };
+    }
+
+    // Bus delivery: journal the command; it goes to its room's shard once on disk, in journal order.
+    // The journal's own append lock is the only one taken, and dispatch runs outside it
+    private static void onCommand(String message) {
+        if (journal == null) {
+            dispatchCommand(message);
+            return;
         }
-        sb.append("}");
+        journal.append(message, () -> dispatchCommand(message))
+                .exceptionally(e -> {
+                    failCommand(message, e);
+                    return null;
+                });
+    }
 
-        broadcastToAll(sb.toString());
+    /**
+     * Applies a journaled command on its room's shard and answers its caller with the result.
+     * Only commands that are on disk get here, so nothing applied can be lost in a crash.
+     */
+    private static void dispatchCommand(String message) {
+        Map<String, String> command = Json.fields(message);
+        if (command.get("cmd") == null || parseLongOrNull(command.get("at")) == null) {
+            // Nothing was acknowledged for a line that cannot be read; replaying the rest matters more
+            System.err.println("Skipping unreadable command: " + message);
+            return;
+        }
+        Room room = roomFor(command.get("room"), true);
+        if (room == null) return;
+        room.execute(() -> {
+            Object result = applyCommand(room, command);
+            if (NODE_ID.equals(command.get("origin"))) {
+                CompletableFuture<Object> pending = pendingCommands.get(Long.parseLong(command.get("id")));
+                if (pending != null) pending.complete(result);
+            }
+        });
     }
 
-    // ========================
-    // WebSocket Utilities
-    // ========================
+    // The command could not be journaled and was never applied: its caller hears so now, not at the timeout
+    private static void failCommand(String message, Throwable error) {
+        Map<String, String> command = Json.fields(message);
+        Long id = parseLongOrNull(command.get("id"));
+        if (!NODE_ID.equals(command.get("origin")) || id == null) return;
+        CompletableFuture<Object> pending = pendingCommands.get(id);
+        if (pending != null) pending.completeExceptionally(error);
+    }
+
+    /**
+     * Restores the rooms from the newest snapshot and the journal entries after it, then keeps
+     * appending to the journal. Replayed commands are applied exactly as they were live, so
+     * the sessions come back identical.
+     */
+    private static void openJournal() throws IOException {
+        String value = System.getProperty("festival.journal", "src/main/resources/data/session.journal");
+        if ("none".equalsIgnoreCase(value)) return;
+        Path path = Paths.get(value);
+
+        replaying = true;
+        long from = 0;
+        if (SNAPSHOT_INTERVAL_SEC > 0) {
+            snapshots = new SnapshotFile(path);
+            from = loadSnapshot(path);
+        }
 
-    private static String calculateWebSocketAccept(String key) throws Exception {
-        String magic = key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
-        byte[] hash = md.digest(magic.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(hash);
+        long start = System.nanoTime();
+        long count = Journal.replay(path, from, FestivalServer::dispatchCommand);
+        // Wait until every shard has applied its part of the replay
+        for (SessionLoop shard : shards) {
+            shard.submit(() -> null).join();
+        }
+        replaying = false;
+        System.out.println("Journal replayed: " + count + " commands in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms (" + path + " from byte " + from + ")");
+
+        // A question that was open at the crash gets its remaining time back
+        for (Room room : rooms.values()) {
+            room.execute(() -> {
+                if (room.session.state == QuizState.QUESTION_ACTIVE) scheduleQuestionTimers(room, room.session);
+            });
+        }
+        journal = new Journal(path, Long.getLong("festival.journal.commitMs", 2));
+
+        if (snapshots != null) {
+            ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "festival-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshotter.scheduleWithFixedDelay(FestivalServer::writeSnapshot,
+                    SNAPSHOT_INTERVAL_SEC, SNAPSHOT_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
     }
 
-    private static String readWebSocketMessage(InputStream in) throws IOException {
-        int firstByte = in.read();
-        if (firstByte == -1) return null;
+    /**
+     * Installs the rooms of the newest intact snapshot.
+     *
+     * @return the journal offset from which to replay
+     */
+    private static long loadSnapshot(Path journalPath) throws IOException {
+        long start = System.nanoTime();
+        SnapshotFile.Contents snapshot = snapshots.load();
+        if (snapshot == null) return 0;
+        // A snapshot ahead of the journal belongs to some other journal
+        if (!Journal.hasEntriesUpTo(journalPath, snapshot.journalOffset)) {
+            System.err.println("Snapshot is ahead of " + journalPath + ", ignoring it");
+            return 0;
+        }
 
-        int secondByte = in.read();
-        if (secondByte == -1) return null;
+        for (SnapshotFile.RoomImage image : snapshot.rooms) {
+            Room room = roomFor(image.code, true);
+            if (room == null) continue;
+            room.execute(() -> room.session = restoreSession(image));
+        }
+        for (SessionLoop shard : shards) {
+            shard.submit(() -> null).join();
+        }
+        System.out.println("Snapshot loaded: " + snapshot.rooms.size() + " rooms in " +
+                (System.nanoTime() - start) / 1000 + " us");
+        return snapshot.journalOffset;
+    }
 
-        boolean masked = (secondByte & 0x80) != 0;
-        int payloadLength = secondByte & 0x7F;
+    /**
+     * Snapshot thread: copies every room on its shard at one journal position (a short pause
+     * per room, no global stop), then writes the snapshot. The position is only reached once
+     * everything before it is on disk, so the snapshot never runs ahead of the journal.
+     */
+    private static void writeSnapshot() {
+        long start = System.nanoTime();
+        if (journal.appendedBytes() == snapshotOffset) return; // Nothing new since the last one
+        List<CompletableFuture<SnapshotFile.RoomImage>> captures = new ArrayList<>();
+        // Queued behind exactly the commands journaled before the cut
+        Journal.Cut cut = journal.cut(() -> {
+            for (Room room : rooms.values()) {
+                captures.add(room.shard.submit(() -> captureRoom(room)));
+            }
+        });
+        long offset = cut.offset;
+        try {
+            cut.done.join();
+            List<SnapshotFile.RoomImage> images = new ArrayList<>();
+            for (CompletableFuture<SnapshotFile.RoomImage> capture : captures) {
+                images.add(capture.join());
+            }
+            snapshots.write(offset, images);
+        } catch (IOException | CompletionException e) {
+            System.err.println("Snapshot failed: " + e.getMessage());
+            return;
+        }
+        snapshotOffset = offset;
+        snapshotsWritten.incrementAndGet();
+        lastSnapshotMicros = (System.nanoTime() - start) / 1000;
+    }
 
-        if (payloadLength == 126) {
-            payloadLength = (in.read() << 8) | in.read();
-        } else if (payloadLength == 127) {
-            // Skip for simplicity - we won't have messages this large
-            return null;
+    // On the room's shard: copies the session so it can be encoded while commands keep running
+    private static SnapshotFile.RoomImage captureRoom(Room room) {
+        QuizSession session = room.session;
+        SnapshotFile.RoomImage image = new SnapshotFile.RoomImage();
+        image.code = room.code;
+        image.state = session.state;
+        image.currentQuestionIndex = session.currentQuestionIndex;
+        image.questionStartTime = session.questionStartTime;
+        image.questions = session.questions;
+
+        int n = 0;
+        for (Player player : session.players.values()) {
+            n = Math.max(n, player.index + 1);
+        }
+        image.playerIds = new String[n];
+        image.nicknames = new String[n];
+        image.joinedAt = new long[n];
+        image.scores = new int[n];
+        for (Player player : session.players.values()) {
+            image.playerIds[player.index] = player.id;
+            image.nicknames[player.index] = player.nickname;
+            image.joinedAt[player.index] = player.joinedAt;
+            image.scores[player.index] = player.score.get();
         }
 
-        byte[] maskKey = null;
-        if (masked) {
-            maskKey = new byte[4];
-            in.read(maskKey);
+        for (int questionId : session.answers.questionIds()) {
+            AnswerStore.QuestionAnswers answers = session.answers.get(questionId);
+            byte[] choices = new byte[n];
+            int[] latencies = new int[n];
+            answers.copyTo(n, choices, latencies);
+            image.answers.add(new SnapshotFile.AnswerColumn(questionId, answers.choiceCount(), choices, latencies));
         }
+        return image;
+    }
 
-        byte[] payload = new byte[payloadLength];
-        int read = 0;
-        while (read < payloadLength) {
-            int r = in.read(payload, read, payloadLength - read);
-            if (r == -1) return null;
-            read += r;
+    private static QuizSession restoreSession(SnapshotFile.RoomImage image) {
+        QuizSession session = new QuizSession();
+        session.state = image.state;
+        session.currentQuestionIndex = image.currentQuestionIndex;
+        session.questionStartTime = image.questionStartTime;
+        session.setQuestions(image.questions);
+
+        for (int i = 0; i < image.playerIds.length; i++) {
+            // Indices are handed out in order, so player i gets index i again
+            int index = session.answers.registerPlayer();
+            if (image.playerIds[i] == null) continue;
+            Player player = new Player(image.playerIds[i], image.nicknames[i], index, image.joinedAt[i]);
+            player.score.set(image.scores[i]);
+            session.players.put(player.id, player);
+            session.leaderboard.add(player.id, player.nickname, player.joinedAt, image.scores[i]);
         }
 
-        if (masked) {
-            for (int i = 0; i < payload.length; i++) {
-                payload[i] ^= maskKey[i % 4];
+        for (SnapshotFile.AnswerColumn column : image.answers) {
+            AnswerStore.QuestionAnswers answers = session.answers.forQuestion(column.questionId, column.choiceCount);
+            for (int i = 0; i < column.choices.length; i++) {
+                if (column.choices[i] != 0) answers.record(i, column.choices[i] - 1, column.latencies[i]);
             }
         }
+        return session;
+    }
 
-        return new String(payload, StandardCharsets.UTF_8);
+    /**
+     * Applies one replicated command. Everything here must come out the same on every node:
+     * times and IDs come from the command, never from this node.
+     */
+    private static Object applyCommand(Room room, Map<String, String> command) {
+        QuizSession session = room.session;
+        long at = Long.parseLong(command.get("at"));
+        switch (command.get("cmd")) {
+            case "join": {
+                Player player = joinPlayer(room, command.get("playerId"), command.get("nickname"), at);
+                // Notify hosts about new player (coalesced per tick)
+                room.hostNotifier.markDirty();
+                return player;
+            }
+            case "answer": {
+                Integer questionId = parseIntOrNull(command.get("questionId"));
+                Integer choice = parseIntOrNull(command.get("choice"));
+                AnswerResult result = questionId == null || choice == null ? AnswerResult.INVALID
+                        : submitAnswer(room, command.get("playerId"), questionId, choice, at);
+                if (result == AnswerResult.ACCEPTED) room.hostNotifier.markDirty();
+                return result;
+            }
+            case "startQuiz":
+                if (session.questions.isEmpty()) {
+                    // Use all questions from bank if none selected: the bank the publisher saw
+                    session.setQuestions(commandQuestions(command));
+                }
+                if (session.questions.isEmpty()) return false;
+                session.state = QuizState.WAIT_JOIN;
+                broadcastToAll(room, "{\"type\":\"quiz.starting\"}");
+                return true;
+            case "openJoin":
+                session.state = QuizState.WAIT_JOIN;
+                broadcastToAll(room, "{\"type\":\"session.waitingForPlayers\"}");
+                return null;
+            case "nextQuestion":
+                advanceQuestion(room, at);
+                return null;
+            case "endQuestion": {
+                // From a deadline: only if that question is still the open one
+                Integer questionId = parseIntOrNull(command.get("questionId"));
+                if (questionId == null || questionId == session.currentQuestionIndex) endCurrentQuestion(room);
+                return null;
+            }
+            case "showResult":
+                room.hostNotifier.flush();
+                finishQuiz(room);
+                return null;
+            case "endQuiz":
+                session.state = QuizState.END;
+                broadcastToAll(room, "{\"type\":\"quiz.ended\"}");
+                return null;
+            case "reset":
+                session.cancelTimers();
+                room.session = new QuizSession();
+                room.publish();
+                broadcastToAll(room, "{\"type\":\"session.reset\"}");
+                room.hostNotifier.reset();
+                room.hostNotifier.flush();
+                return null;
+            case "questions": {
+                List<Question> selected = commandQuestions(command);
+                session.setQuestions(selected);
+                return selected.size();
+            }
+            default: // "open": the room now exists here too
+                return null;
+        }
     }
 
-    private static void sendWebSocketMessage(WebSocketClient client, String message) {
-        try {
-            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
-            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    /**
+     * The questions a startQuiz or questions command carries. Journals written before commands
+     * carried them hold only IDs (or nothing, for startQuiz), which are looked up in the current
+     * bank as they were then.
+     */
+    private static List<Question> commandQuestions(Map<String, String> command) {
+        String carried = command.get("questions");
+        if (carried != null) {
+            try {
+                return readQuestions(carried);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unreadable questions in command " + command.get("id") + ": " + e.getMessage());
+                return List.of();
+            }
+        }
+        QuestionBank bank = questionBank.get();
+        if (!command.containsKey("ids")) return bank.all();
+        List<Question> selected = new ArrayList<>();
+        for (int id : parseIntList(command.get("ids"))) {
+            Question q = bank.get(id);
+            if (q != null) selected.add(q);
+        }
+        return List.copyOf(selected);
+    }
 
-            frame.write(0x81); // Text frame, FIN bit set
+    // A command's "questions" member, with everything a session needs from them
+    private static void writeQuestions(Json.Writer json, List<Question> questions) {
+        json.name("questions").beginArray();
+        for (Question q : questions) {
+            json.beginObject().field("id", q.id).field("text", q.text).name("choices").beginArray();
+            for (String choice : q.choices) {
+                json.value(choice);
+            }
+            json.endArray().field("correctIndex", q.correctIndex).field("explanation", q.explanation)
+                    .field("timeLimit", q.timeLimitSec).endObject();
+        }
+        json.endArray();
+    }
 
-            if (payload.length < 126) {
-                frame.write(payload.length);
-            } else if (payload.length < 65536) {
-                frame.write(126);
-                frame.write((payload.length >> 8) & 0xFF);
-                frame.write(payload.length & 0xFF);
-            } else {
-                frame.write(127);
-                for (int i = 7; i >= 0; i--) {
-                    frame.write((payload.length >> (8 * i)) & 0xFF);
+    private static List<Question> readQuestions(String json) {
+        List<Question> questions = new ArrayList<>();
+        Json.Reader reader = new Json.Reader(json);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int id = 0;
+            String text = null;
+            List<String> choices = new ArrayList<>();
+            int correctIndex = 0;
+            String explanation = null;
+            int timeLimit = QUESTION_TIME_LIMIT_SEC;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        id = reader.nextInt();
+                        break;
+                    case "text":
+                        text = reader.nextString();
+                        break;
+                    case "choices":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            choices.add(reader.nextString());
+                        }
+                        reader.endArray();
+                        break;
+                    case "correctIndex":
+                        correctIndex = reader.nextInt();
+                        break;
+                    case "explanation":
+                        explanation = reader.nextScalar();
+                        break;
+                    case "timeLimit":
+                        timeLimit = reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
                 }
             }
+            reader.endObject();
+            questions.add(new Question(id, text, choices.toArray(new String[0]), correctIndex, explanation, timeLimit));
+        }
+        reader.endArray();
+        reader.endDocument();
+        return List.copyOf(questions);
+    }
+
+    // ========================
+    // Session Commands (run on the room's shard only)
+    // ========================
+
+    private static Player joinPlayer(Room room, String playerId, String nickname, long joinedAt) {
+        QuizSession session = room.session;
+        if (nickname == null || nickname.isEmpty()) {
+            nickname = "Player" + (session.players.size() + 1);
+        }
+        Player player = new Player(playerId, nickname, session.answers.registerPlayer(), joinedAt);
+        session.players.put(player.id, player);
+        session.leaderboard.add(player.id, player.nickname, player.joinedAt);
+        return player;
+    }
 
-            frame.write(payload);
+    /**
+     * Records an answer for the active question. Shared by POST /api/answer and the
+     * answer.submit WebSocket message.
+     */
+    private static AnswerResult submitAnswer(Room room, String playerId, int questionId, int choice, long at) {
+        QuizSession session = room.session;
+        Question currentQ = session.getCurrentQuestion();
+        // Only the question that is currently open can be answered
+        if (session.state != QuizState.QUESTION_ACTIVE || currentQ == null
+                || questionId != session.currentQuestionIndex) {
+            return AnswerResult.NO_ACTIVE_QUESTION;
+        }
+
+        Player player = playerId == null ? null : session.players.get(playerId);
+        if (player == null) {
+            return AnswerResult.PLAYER_NOT_FOUND;
+        }
+        if (choice < 0 || choice >= currentQ.choices.length) {
+            return AnswerResult.INVALID;
+        }
+
+        AnswerStore.QuestionAnswers questionAnswers = session.answers.forQuestion(questionId, currentQ.choices.length);
+        ScoringEngine.Outcome outcome = scoring.submit(questionAnswers, player, choice, currentQ,
+                at - session.questionStartTime, currentQ.timeLimitSec * 1000L);
+        if (outcome == ScoringEngine.Outcome.CORRECT) {
+            session.leaderboard.update(player.id, player.score.get());
+        }
+        return outcome == ScoringEngine.Outcome.DUPLICATE ? AnswerResult.DUPLICATE : AnswerResult.ACCEPTED;
+    }
+
+    private static void advanceQuestion(Room room, long at) {
+        QuizSession session = room.session;
+        // Deliver the previous question's final counts before moving on
+        room.hostNotifier.flush();
+
+        session.currentQuestionIndex++;
+        if (session.currentQuestionIndex >= session.questions.size()) {
+            finishQuiz(room);
+            return;
+        }
+
+        session.state = QuizState.QUESTION_ACTIVE;
+        session.questionStartTime = at;
 
-            synchronized (client.out) {
-                client.out.write(frame.toByteArray());
-                client.out.flush();
+        broadcastToAll(room, session.startFrame(session.currentQuestionIndex),
+                session.binaryStartFrame(session.currentQuestionIndex));
+        room.hostNotifier.reset();
+
+        session.cancelTimers();
+        if (!replaying) scheduleQuestionTimers(room, session);
+    }
+
+    /**
+     * Auto-ends the current question at its time limit (cancelled if the host ends it first)
+     * and starts its countdown ticks.
+     */
+    private static void scheduleQuestionTimers(Room room, QuizSession session) {
+        Question q = session.getCurrentQuestion();
+        int index = session.currentQuestionIndex;
+        long elapsedMs = System.currentTimeMillis() - session.questionStartTime;
+        session.cancelTimers();
+        // Every node's deadline fires; the first endQuestion to be applied closes the question
+        session.questionDeadline = deadlines.schedule(() -> replicate(room, "endQuestion", json -> json.field("questionId", index)),
+                q.timeLimitSec * 1000L - elapsedMs, TimeUnit.MILLISECONDS);
+        if (QUESTION_TICK_SEC > 0) {
+            long ticksDone = Math.max(0, elapsedMs) / (QUESTION_TICK_SEC * 1000L);
+            scheduleTick(room, session, index, q.timeLimitSec - QUESTION_TICK_SEC * (int) (ticksDone + 1));
+        }
+    }
+
+    /**
+     * Schedules the next question.tick, which tells phones the remaining seconds so their
+     * local countdowns do not drift. Each tick schedules the one after it.
+     */
+    private static void scheduleTick(Room room, QuizSession session, int index, int remaining) {
+        if (QUESTION_TICK_SEC <= 0 || remaining <= 0) return;
+        long due = session.questionStartTime + (session.getCurrentQuestion().timeLimitSec - remaining) * 1000L;
+        session.questionTick = deadlines.schedule(() -> room.execute(() -> {
+            if (room.session != session || session.state != QuizState.QUESTION_ACTIVE ||
+                session.currentQuestionIndex != index) {
+                return;
             }
-        } catch (IOException e) {
-            clients.remove(client.id);
-            hostClients.remove(client.id);
+            broadcastToAll(room, WebSocketEngine.textFrame("{\"type\":\"question.tick\",\"questionId\":" + index +
+                    ",\"remaining\":" + remaining + "}"), BinaryProtocol.questionTick(index, remaining));
+            scheduleTick(room, session, index, remaining - QUESTION_TICK_SEC);
+        }), due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static void endCurrentQuestion(Room room) {
+        QuizSession session = room.session;
+        if (session.state != QuizState.QUESTION_ACTIVE) return;
+
+        session.state = QuizState.QUESTION_CLOSED;
+        session.cancelTimers();
+        room.hostNotifier.flush();
+
+        broadcastToAll(room, session.endFrame(session.currentQuestionIndex),
+                session.binaryEndFrame(session.currentQuestionIndex));
+    }
+
+    static WebSocketEngine.Frame questionStartFrame(List<Question> questions, int index) {
+        Question q = questions.get(index);
+        StringBuilder sb = new StringBuilder("{\"type\":\"question.start\",");
+        sb.append("\"questionId\":").append(index).append(",");
+        sb.append("\"questionNumber\":").append(index + 1).append(",");
+        sb.append("\"totalQuestions\":").append(questions.size()).append(",");
+        sb.append("\"text\":\"").append(Json.escape(q.text)).append("\",");
+        sb.append("\"choices\":[");
+        for (int i = 0; i < q.choices.length; i++) {
+            if (i > 0) sb.append(",");
+            sb.append("\"").append(Json.escape(q.choices[i])).append("\"");
+        }
+        sb.append("],\"timeLimit\":").append(q.timeLimitSec).append("}");
+        return WebSocketEngine.textFrame(sb.toString()).precompress();
+    }
+
+    static WebSocketEngine.Frame questionEndFrame(List<Question> questions, int index) {
+        Question q = questions.get(index);
+        StringBuilder sb = new StringBuilder("{\"type\":\"question.end\",");
+        sb.append("\"questionId\":").append(index).append(",");
+        sb.append("\"correctIndex\":").append(q.correctIndex).append(",");
+        sb.append("\"correctAnswer\":\"").append(Json.escape(q.choices[q.correctIndex])).append("\"");
+        if (q.explanation != null) {
+            sb.append(",\"explanation\":\"").append(Json.escape(q.explanation)).append("\"");
+        }
+        sb.append("}");
+        return WebSocketEngine.textFrame(sb.toString()).precompress();
+    }
+
+    private static void finishQuiz(Room room) {
+        room.session.state = QuizState.RESULT;
+        room.session.cancelTimers();
+        publishFinalResults(room);
+        broadcastToAll(room, "{\"type\":\"quiz.finish\"}");
+    }
+
+    /**
+     * Pushes each bound player their own rank and score plus the shared top 3, so phones
+     * do not all request /api/result the moment quiz.finish arrives.
+     */
+    private static void publishFinalResults(Room room) {
+        Leaderboard leaderboard = room.session.leaderboard;
+        List<Leaderboard.Entry> top3 = leaderboard.top(3);
+        int total = leaderboard.size();
+
+        // Same for every player; built once
+        StringBuilder shared = new StringBuilder(",\"top3\":");
+        appendRanking(shared, top3);
+        shared.append(",\"total\":").append(total).append("}");
+        String tail = shared.toString();
+        byte[] binaryTail = BinaryProtocol.resultTail(top3, total);
+
+        for (WebSocketClient client : room.clients.values()) {
+            if (client.playerId == null) continue;
+            Leaderboard.Entry e = leaderboard.entry(client.playerId);
+            if (e == null) continue;
+            if (client.binary) {
+                sendFrame(client, BinaryProtocol.quizResult(e, binaryTail));
+                continue;
+            }
+            sendWebSocketMessage(client, "{\"type\":\"quiz.result\",\"personal\":{\"nickname\":\"" +
+                    Json.escape(e.nickname) + "\",\"score\":" + e.score + ",\"rank\":" + e.rank + "}" + tail);
+        }
+    }
+
+    // ========================
+    // WebSocket Utilities
+    // ========================
+
+    private static void sendWebSocketMessage(WebSocketClient client, String message) {
+        sendFrame(client, WebSocketEngine.textFrame(message));
+    }
+
+    private static void sendFrame(WebSocketClient client, WebSocketEngine.Frame frame) {
+        if (!client.connection.send(frame)) {
+            client.room.clients.remove(client.id);
+            client.room.hosts.remove(client.id);
+        }
+    }
+
+    // Broadcasts encode (and compress) the frame once and share it across every client's send queue
+    private static void broadcastToAll(Room room, String message) {
+        broadcastToAll(room, WebSocketEngine.textFrame(message));
+    }
+
+    private static void broadcastToAll(Room room, WebSocketEngine.Frame frame) {
+        for (WebSocketClient client : room.clients.values()) {
+            sendFrame(client, frame);
         }
     }
 
-    private static void broadcastToAll(String message) {
-        for (WebSocketClient client : clients.values()) {
-            sendWebSocketMessage(client, message);
+    // Binary-protocol clients get the binary variant, preceded by the session's string table if they lack it
+    private static void broadcastToAll(Room room, WebSocketEngine.Frame text, WebSocketEngine.Frame binary) {
+        BinaryProtocol.StringTable table = room.session.stringTable(room.session.currentQuestionIndex);
+        for (WebSocketClient client : room.clients.values()) {
+            if (!client.binary) {
+                sendFrame(client, text);
+                continue;
+            }
+            if (client.stringTable != table.id) {
+                client.stringTable = table.id;
+                sendFrame(client, table.frame);
+            }
+            sendFrame(client, binary);
         }
     }
 
-    private static void broadcastToHosts(String message) {
-        for (WebSocketClient client : hostClients.values()) {
-            sendWebSocketMessage(client, message);
+    private static void broadcastToHosts(Room room, String message) {
+        WebSocketEngine.Frame frame = WebSocketEngine.textFrame(message);
+        for (WebSocketClient client : room.hosts.values()) {
+            sendFrame(client, frame);
         }
     }
 
@@ -566,85 +1320,162 @@ public class FestivalServer {
     // ========================
 
     private static void loadQuestionBank() {
-        questionBank.clear();
+        List<Question> bank = new ArrayList<>();
 
         // Load from posted quizzes file if exists
-        Path quizPath = Paths.get("src/main/resources/data/quizzes.json");
-        if (Files.exists(quizPath)) {
+        if (Files.exists(QUIZ_FILE)) {
             try {
-                String content = Files.readString(quizPath);
+                String content = Files.readString(QUIZ_FILE);
                 // Parse quizzes
                 List<Question> loaded = parseQuestions(content);
-                questionBank.addAll(loaded);
+                bank.addAll(loaded);
             } catch (IOException e) {
                 e.printStackTrace();
+            } catch (IllegalArgumentException e) {
+                System.err.println(QUIZ_FILE + ": " + e.getMessage());
+                // A bad save does not replace a bank that is already serving
+                if (questionBank.get() != QuestionBank.EMPTY) return;
             }
         }
 
         // Add some default questions if empty
-        if (questionBank.isEmpty()) {
-            questionBank.add(new Question(1,
+        if (bank.isEmpty()) {
+            bank.add(new Question(1,
                     "縄文時代の特徴的な土器の模様は何と呼ばれますか？",
                     new String[]{"縄目模様", "弥生模様", "古墳模様", "飛鳥模様"},
                     0, "縄文土器の名前の由来は、縄を転がして付けた模様です。"));
 
-            questionBank.add(new Question(2,
+            bank.add(new Question(2,
                     "打製石器の主な用途は何ですか？",
                     new String[]{"狩猟", "農耕", "儀式", "装飾"},
                     0, "打製石器は主に動物を狩るために使われました。"));
 
-            questionBank.add(new Question(3,
+            bank.add(new Question(3,
                     "弥生時代に大陸から伝わった重要な技術は何ですか？",
                     new String[]{"稲作", "製鉄", "製紙", "印刷"},
                     0, "弥生時代には稲作技術が朝鮮半島から伝わりました。"));
 
-            questionBank.add(new Question(4,
+            bank.add(new Question(4,
                     "古墳時代の埴輪の主な役割は何ですか？",
                     new String[]{"副葬品", "日用品", "貨幣", "武器"},
                     0, "埴輪は古墳に置かれた副葬品でした。"));
 
-            questionBank.add(new Question(5,
+            bank.add(new Question(5,
                     "会津地方で有名な伝統工芸品は何ですか？",
                     new String[]{"会津漆器", "有田焼", "南部鉄器", "西陣織"},
                     0, "会津は漆器の産地として有名です。"));
         }
 
-        System.out.println("Question bank loaded: " + questionBank.size() + " questions");
+        questionBank.set(new QuestionBank(bank));
+        System.out.println("Question bank loaded: " + bank.size() + " questions");
+    }
+
+    /**
+     * Reloads the question bank on a watcher thread whenever the quizzes file is written, so
+     * newly posted quizzes appear without a reset. Sessions keep the question list they
+     * started with.
+     */
+    private static void watchQuestionBank() {
+        Path dir = QUIZ_FILE.toAbsolutePath().getParent();
+        WatchService watcher;
+        try {
+            Files.createDirectories(dir);
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Not watching " + QUIZ_FILE + ": " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = false;
+                    // One save can raise several events; collect them all, then reload once
+                    do {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                    || QUIZ_FILE.getFileName().equals(event.context());
+                        }
+                        key.reset();
+                    } while ((key = watcher.poll(200, TimeUnit.MILLISECONDS)) != null);
+                    if (changed) loadQuestionBank();
+                }
+            } catch (InterruptedException e) {
+                // Shutting down
+            }
+        }, "festival-quiz-watcher");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private static List<Question> parseQuestions(String json) {
+    /**
+     * Reads the question array of quizzes.json. Objects without a text or choices are skipped;
+     * members the bank does not use, nested or not, are ignored.
+     *
+     * @throws IllegalArgumentException if the file is not well-formed JSON
+     */
+    static List<Question> parseQuestions(String json) {
         List<Question> questions = new ArrayList<>();
-        // Simple JSON array parsing
         int id = 100;
-        int start = 0;
-        while ((start = json.indexOf("{", start)) != -1) {
-            int end = json.indexOf("}", start);
-            if (end == -1) break;
-
-            String obj = json.substring(start, end + 1);
-            String text = extractJsonField(obj, "question");
-            if (text == null) text = extractJsonField(obj, "text");
-
-            String choicesStr = extractJsonArray(obj, "choices");
-            String answer = extractJsonField(obj, "answer");
-            String explanation = extractJsonField(obj, "explanation");
-
-            if (text != null && choicesStr != null) {
-                String[] choices = parseStringArray(choicesStr);
-                int correctIndex = 0;
-                if (answer != null) {
-                    for (int i = 0; i < choices.length; i++) {
-                        if (choices[i].equals(answer)) {
-                            correctIndex = i;
-                            break;
+        Json.Reader reader = new Json.Reader(json);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String text = null;
+            String question = null;
+            List<String> choices = null;
+            String answer = null;
+            String explanation = null;
+            Integer timeLimit = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == Json.Token.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "question":
+                        question = reader.nextScalar();
+                        break;
+                    case "text":
+                        text = reader.nextScalar();
+                        break;
+                    case "choices":
+                        choices = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String choice = reader.nextScalar();
+                            if (choice != null) choices.add(choice);
                         }
-                    }
+                        reader.endArray();
+                        break;
+                    case "answer":
+                        answer = reader.nextScalar();
+                        break;
+                    case "explanation":
+                        explanation = reader.nextScalar();
+                        break;
+                    case "timeLimit":
+                        timeLimit = parseIntOrNull(reader.nextScalar());
+                        break;
+                    default:
+                        reader.skipValue();
                 }
-                questions.add(new Question(id++, text, choices, correctIndex, explanation));
             }
+            reader.endObject();
 
-            start = end + 1;
+            if (question != null) text = question;
+            if (text != null && choices != null) {
+                int correctIndex = Math.max(0, choices.indexOf(answer));
+                int limit = timeLimit != null && timeLimit > 0 ? timeLimit : QUESTION_TIME_LIMIT_SEC;
+                questions.add(new Question(id++, text, choices.toArray(new String[0]), correctIndex, explanation, limit));
+            }
         }
+        reader.endArray();
+        reader.endDocument();
         return questions;
     }
 
@@ -652,83 +1483,80 @@ public class FestivalServer {
     // Utilities
     // ========================
 
+    // Random rather than sequential, so nodes never hand out the same ID
     private static String generatePlayerId() {
-        return "p" + System.currentTimeMillis() % 100000 + (int)(Math.random() * 1000);
+        return "p" + Long.toString(ThreadLocalRandom.current().nextLong() & 0xFFFFFFFFFFFFL, 36);
     }
 
-    private static String extractJsonField(String json, String field) {
-        String pattern = "\"" + field + "\"\\s*:\\s*\"";
-        int start = json.indexOf(pattern);
-        if (start == -1) return null;
-        start += pattern.length() - 1;
-
-        int end = start + 1;
-        while (end < json.length()) {
-            if (json.charAt(end) == '"' && json.charAt(end - 1) != '\\') break;
-            end++;
+    private static String queryParam(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) return pair.substring(eq + 1);
         }
+        return null;
+    }
 
-        if (end >= json.length()) return null;
-        return json.substring(start + 1, end)
-                .replace("\\\"", "\"")
-                .replace("\\n", "\n")
-                .replace("\\\\", "\\");
+    private static Long parseLongOrNull(String s) {
+        if (s == null) return null;
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
-    private static String extractJsonArray(String json, String field) {
-        String pattern = "\"" + field + "\"\\s*:\\s*\\[";
-        int start = json.indexOf(pattern);
-        if (start == -1) return null;
-        start = json.indexOf("[", start);
-        int end = json.indexOf("]", start);
-        if (end == -1) return null;
-        return json.substring(start, end + 1);
+    private static Integer parseIntOrNull(String s) {
+        if (s == null) return null;
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
-    private static String[] parseStringArray(String arrayJson) {
-        List<String> items = new ArrayList<>();
-        int start = 0;
-        while ((start = arrayJson.indexOf("\"", start)) != -1) {
-            int end = start + 1;
-            while (end < arrayJson.length()) {
-                if (arrayJson.charAt(end) == '"' && arrayJson.charAt(end - 1) != '\\') break;
-                end++;
-            }
-            if (end < arrayJson.length()) {
-                items.add(arrayJson.substring(start + 1, end));
-            }
-            start = end + 1;
+    // Like parseIntOrNull, for a value that is next in a reader: anything but an int reads as null
+    static Integer nextIntOrNull(Json.Reader reader) {
+        if (reader.peek() != Json.Token.NUMBER) return parseIntOrNull(reader.nextScalar());
+        try {
+            return reader.nextInt();
+        } catch (IllegalArgumentException e) {
+            reader.skipValue();
+            return null;
         }
-        return items.toArray(new String[0]);
     }
 
-    private static List<Integer> parseIntArray(String json) {
+    // The "ids" of a questions command: comma-separated, as /api/session/questions forwards them
+    private static List<Integer> parseIntList(String csv) {
         List<Integer> ids = new ArrayList<>();
-        String nums = json.replaceAll("[^0-9,]", "");
-        for (String s : nums.split(",")) {
-            if (!s.isEmpty()) {
-                ids.add(Integer.parseInt(s));
-            }
+        if (csv == null) return ids;
+        for (String s : csv.split(",")) {
+            Integer id = parseIntOrNull(s);
+            if (id != null) ids.add(id);
         }
         return ids;
     }
 
-    private static String escapeJson(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
-    }
-
     private static String readBody(HttpExchange ex) throws IOException {
         InputStream in = ex.getRequestBody();
         return new String(in.readAllBytes(), StandardCharsets.UTF_8);
     }
 
     private static void sendJson(HttpExchange ex, int status, String json) throws IOException {
-        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        sendJson(ex, status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendJson(HttpExchange ex, int status, Json.Writer json) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        ex.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        ex.sendResponseHeaders(status, json.size());
+        try (OutputStream out = ex.getResponseBody()) {
+            json.writeTo(out);
+        }
+    }
+
+    // Already-encoded body (UTF-8 JSON, or gzip when Content-Encoding is set)
+    private static void sendJson(HttpExchange ex, int status, byte[] bytes) throws IOException {
         ex.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
         ex.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
         ex.sendResponseHeaders(status, bytes.length);
@@ -745,13 +1573,147 @@ public class FestivalServer {
         IDLE, WAIT_JOIN, QUESTION_ACTIVE, QUESTION_CLOSED, RESULT, END
     }
 
+    enum AnswerResult {
+        ACCEPTED, NO_ACTIVE_QUESTION, PLAYER_NOT_FOUND, INVALID, DUPLICATE
+    }
+
+    /**
+     * One quiz game, addressed by its code. All of a room's state changes run as commands on
+     * its shard, which publish a new snapshot when they finish; its clients, hosts, timers
+     * and host counters belong to it alone, so rooms never contend with each other.
+     */
+    static final class Room {
+        final String code;
+        private final SessionLoop shard;
+        volatile QuizSession session = new QuizSession(); // Replaced on reset, on the shard
+        volatile SessionSnapshot snapshot = session.snapshot();
+        final Map<String, WebSocketClient> clients = new ConcurrentHashMap<>();
+        final Map<String, WebSocketClient> hosts = new ConcurrentHashMap<>();
+        final HostNotifier hostNotifier;
+
+        Room(String code, SessionLoop shard) {
+            this.code = code;
+            this.shard = shard;
+            // Coalesced player/answer counters for this room's hosts
+            this.hostNotifier = new HostNotifier(new SessionCounters(this),
+                    message -> broadcastToHosts(this, message), scheduler, HOST_TICK_MS);
+        }
+
+        /**
+         * Queues a command on the room's shard; the snapshot is republished after it runs.
+         */
+        void execute(Runnable command) {
+            shard.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    publish();
+                }
+            });
+        }
+
+        // Called on the shard only
+        void publish() {
+            snapshot = session.snapshot();
+        }
+    }
+
+    /**
+     * Mutable session state, owned by the room's shard. Other threads read a SessionSnapshot
+     * instead; the answer store, leaderboard and players map are themselves thread-safe.
+     */
     static class QuizSession {
         QuizState state = QuizState.IDLE;
-        Map<String, Player> players = new ConcurrentHashMap<>();
-        List<Question> questions = new ArrayList<>();
-        Map<Integer, Map<String, Answer>> answers = new ConcurrentHashMap<>();
+        final Map<String, Player> players = new ConcurrentHashMap<>();
+        List<Question> questions = List.of(); // Immutable; replaced as a whole through setQuestions
+        // Rendered and compressed question.start / question.end frames, by question index
+        private WebSocketEngine.Frame[] startFrames = new WebSocketEngine.Frame[0];
+        private WebSocketEngine.Frame[] endFrames = new WebSocketEngine.Frame[0];
+        // The same messages for binary-protocol clients, and the choice texts they refer to: one
+        // table for the prepared questions, and one for the latest question shown past them
+        private BinaryProtocol.StringTable stringTable = new BinaryProtocol.StringTable(List.of(), 0, 0);
+        private BinaryProtocol.StringTable lateTable;
+        private int lateTableIndex = -1;
+        private WebSocketEngine.Frame[] binaryStartFrames = new WebSocketEngine.Frame[0];
+        private WebSocketEngine.Frame[] binaryEndFrames = new WebSocketEngine.Frame[0];
+        final AnswerStore answers = new AnswerStore();
+        final Leaderboard leaderboard = new Leaderboard();
         int currentQuestionIndex = -1;
         long questionStartTime = 0;
+        DeadlineTimer.Timeout questionDeadline;
+        DeadlineTimer.Timeout questionTick;
+
+        // Rendered /api/ranking pages and /api/result body for rankingPagesVersion of the leaderboard
+        private final Map<Long, String> rankingPages = new ConcurrentHashMap<>();
+        private long rankingPagesVersion = -1;
+
+        SessionSnapshot snapshot() {
+            return new SessionSnapshot(state, currentQuestionIndex, questions, questionStartTime,
+                    players.size(), answers);
+        }
+
+        /**
+         * Fixes the question list and prepares every question's start and end frames, so
+         * advancing and closing a question only fan out ready buffers. A list longer than
+         * PREPARED_QUESTIONS_MAX (the whole bank, when nothing was selected) is prepared a
+         * question at a time instead, the first time each is shown.
+         */
+        void setQuestions(List<Question> questions) {
+            this.questions = questions;
+            this.startFrames = new WebSocketEngine.Frame[questions.size()];
+            this.endFrames = new WebSocketEngine.Frame[questions.size()];
+            this.stringTable = new BinaryProtocol.StringTable(questions, 0, Math.min(questions.size(), PREPARED_QUESTIONS_MAX));
+            this.lateTable = null;
+            this.lateTableIndex = -1;
+            this.binaryStartFrames = new WebSocketEngine.Frame[questions.size()];
+            this.binaryEndFrames = new WebSocketEngine.Frame[questions.size()];
+            for (int i = 0; i < Math.min(questions.size(), PREPARED_QUESTIONS_MAX); i++) {
+                startFrame(i);
+                endFrame(i);
+                binaryStartFrame(i);
+                binaryEndFrame(i);
+            }
+        }
+
+        WebSocketEngine.Frame startFrame(int index) {
+            if (startFrames[index] == null) startFrames[index] = questionStartFrame(questions, index);
+            return startFrames[index];
+        }
+
+        WebSocketEngine.Frame endFrame(int index) {
+            if (endFrames[index] == null) endFrames[index] = questionEndFrame(questions, index);
+            return endFrames[index];
+        }
+
+        WebSocketEngine.Frame binaryStartFrame(int index) {
+            if (binaryStartFrames[index] == null) {
+                binaryStartFrames[index] = BinaryProtocol.questionStart(stringTable(index), questions, index);
+            }
+            return binaryStartFrames[index];
+        }
+
+        WebSocketEngine.Frame binaryEndFrame(int index) {
+            if (binaryEndFrames[index] == null) {
+                binaryEndFrames[index] = BinaryProtocol.questionEnd(stringTable(index), questions, index);
+            }
+            return binaryEndFrames[index];
+        }
+
+        // The table holding question index's choices; past the prepared prefix it is built when first needed
+        BinaryProtocol.StringTable stringTable(int index) {
+            if (index < PREPARED_QUESTIONS_MAX) return stringTable;
+            if (lateTableIndex != index) {
+                lateTable = new BinaryProtocol.StringTable(questions, index, index + 1);
+                lateTableIndex = index;
+            }
+            return lateTable;
+        }
+
+        void cancelTimers() {
+            if (questionDeadline != null) questionDeadline.cancel();
+            if (questionTick != null) questionTick.cancel();
+            questionDeadline = questionTick = null;
+        }
 
         Question getCurrentQuestion() {
             if (currentQuestionIndex >= 0 && currentQuestionIndex < questions.size()) {
@@ -759,18 +1721,103 @@ public class FestivalServer {
             }
             return null;
         }
+
+        /**
+         * Returns one page of the ranking as JSON. Pages are rendered once per leaderboard
+         * version, so the burst of requests after quiz.finish is served from memory.
+         */
+        String rankingPage(int page, int size) {
+            // size is at most RANKING_MAX_PAGE_SIZE, so it fits in the low byte
+            return rendered(((long) page << 8) | size, () -> {
+                StringBuilder sb = new StringBuilder("{\"page\":").append(page)
+                        .append(",\"size\":").append(size)
+                        .append(",\"total\":").append(leaderboard.size())
+                        .append(",\"entries\":");
+                appendRanking(sb, leaderboard.page(page, size));
+                return sb.append("}").toString();
+            });
+        }
+
+        /**
+         * Returns the shared fields of /api/result: the top three, the first ranking page and
+         * the total. The rest of the ranking is paged through /api/ranking.
+         */
+        String resultPage() {
+            return rendered(RESULT_PAGE_KEY, () -> {
+                StringBuilder sb = new StringBuilder("\"top3\":");
+                appendRanking(sb, leaderboard.top(3));
+                sb.append(",\"ranking\":");
+                appendRanking(sb, leaderboard.page(0, RANKING_PAGE_SIZE));
+                return sb.append(",\"total\":").append(leaderboard.size()).toString();
+            });
+        }
+
+        private String rendered(long key, Supplier<String> render) {
+            long version = leaderboard.version();
+            synchronized (rankingPages) {
+                if (version != rankingPagesVersion) {
+                    rankingPages.clear();
+                    rankingPagesVersion = version;
+                }
+            }
+            return rankingPages.computeIfAbsent(key, k -> render.get());
+        }
+    }
+
+    /**
+     * Immutable view of a session as of the last command applied by its room's shard.
+     */
+    static final class SessionSnapshot {
+        final QuizState state;
+        final int currentQuestionIndex;
+        final List<Question> questions;
+        final long questionStartTime;
+        final int playerCount;
+        private final AnswerStore answers;
+
+        SessionSnapshot(QuizState state, int currentQuestionIndex, List<Question> questions,
+                        long questionStartTime, int playerCount, AnswerStore answers) {
+            this.state = state;
+            this.currentQuestionIndex = currentQuestionIndex;
+            this.questions = questions;
+            this.questionStartTime = questionStartTime;
+            this.playerCount = playerCount;
+            this.answers = answers;
+        }
+
+        Question currentQuestion() {
+            if (currentQuestionIndex >= 0 && currentQuestionIndex < questions.size()) {
+                return questions.get(currentQuestionIndex);
+            }
+            return null;
+        }
+
+        // Live count for the current question; the store's counters are atomic
+        int answeredCount() {
+            AnswerStore.QuestionAnswers current = answers.get(currentQuestionIndex);
+            return current == null ? 0 : current.answeredCount();
+        }
+
+        int[] choiceTallies() {
+            Question q = currentQuestion();
+            if (q == null) return new int[0];
+            AnswerStore.QuestionAnswers current = answers.get(currentQuestionIndex);
+            return current == null ? new int[q.choices.length] : current.tallies();
+        }
     }
 
     static class Player {
         String id;
         String nickname;
-        int score = 0;
+        final int index; // Dense per-session index into the AnswerStore columns
+        final AtomicInteger score = new AtomicInteger();
         long joinedAt;
 
-        Player(String id, String nickname) {
+        Player(String id, String nickname, int index, long joinedAt) {
             this.id = id;
             this.nickname = nickname;
-            this.joinedAt = System.currentTimeMillis();
+            this.index = index;
+            this.joinedAt = joinedAt;
         }
     }
 
@@ -780,74 +1827,59 @@ public class FestivalServer {
         String[] choices;
         int correctIndex;
         String explanation;
+        int timeLimitSec;
 
         Question(int id, String text, String[] choices, int correctIndex, String explanation) {
+            this(id, text, choices, correctIndex, explanation, QUESTION_TIME_LIMIT_SEC);
+        }
+
+        Question(int id, String text, String[] choices, int correctIndex, String explanation, int timeLimitSec) {
             this.id = id;
             this.text = text;
             this.choices = choices;
             this.correctIndex = correctIndex;
             this.explanation = explanation;
-        }
-    }
-
-    static class Answer {
-        String playerId;
-        int questionId;
-        int choice;
-        long answeredAt;
-
-        Answer(String playerId, int questionId, int choice, long answeredAt) {
-            this.playerId = playerId;
-            this.questionId = questionId;
-            this.choice = choice;
-            this.answeredAt = answeredAt;
+            this.timeLimitSec = timeLimitSec;
         }
     }
 
     static class WebSocketClient {
         String id;
-        Socket socket;
-        OutputStream out;
+        WebSocketEngine.Connection connection;
+        final Room room;
+        volatile String playerId; // Set by player.bind
+        final boolean binary; // Negotiated the binary subprotocol
+        volatile int stringTable; // ID of the last string table sent to a binary client
 
-        WebSocketClient(String id, Socket socket, OutputStream out) {
+        WebSocketClient(String id, WebSocketEngine.Connection connection, Room room) {
             this.id = id;
-            this.socket = socket;
-            this.out = out;
+            this.connection = connection;
+            this.room = room;
+            this.binary = BinaryProtocol.NAME.equals(connection.getSubprotocol());
         }
     }
 
-    static class StaticFileHandler implements HttpHandler {
-        private static final Map<String, String> MIME_TYPES = Map.of(
-                "html", "text/html",
-                "css", "text/css",
-                "js", "application/javascript",
-                "json", "application/json",
-                "png", "image/png",
-                "jpg", "image/jpeg",
-                "svg", "image/svg+xml"
-        );
+    // Reads host counters from the room's latest session snapshot
+    static class SessionCounters implements HostNotifier.CounterSource {
+        private final Room room;
 
-        @Override
-        public void handle(HttpExchange ex) throws IOException {
-            String path = ex.getRequestURI().getPath();
-            if (path.equals("/")) path = "/index.html";
+        SessionCounters(Room room) {
+            this.room = room;
+        }
 
-            Path filePath = Paths.get("src/main/resources/static" + path);
+        @Override
+        public int playerCount() {
+            return room.session.players.size();
+        }
 
-            if (Files.exists(filePath) && !Files.isDirectory(filePath)) {
-                byte[] content = Files.readAllBytes(filePath);
-                String ext = path.substring(path.lastIndexOf('.') + 1);
-                String mime = MIME_TYPES.getOrDefault(ext, "application/octet-stream");
+        @Override
+        public int answeredCount() {
+            return room.snapshot.answeredCount();
+        }
 
-                ex.getResponseHeaders().set("Content-Type", mime + ";charset=UTF-8");
-                ex.sendResponseHeaders(200, content.length);
-                try (OutputStream out = ex.getResponseBody()) {
-                    out.write(content);
-                }
-            } else {
-                ex.sendResponseHeaders(404, 0);
-                ex.close();
-            }
+        @Override
+        public int[] choiceTallies() {
+            return room.snapshot.choiceTallies();
         }
     }
 }
@@ -0,0 +1,101 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces host-facing counter updates (player count, answered count, per-choice tallies).
+ * Changes only mark the notifier dirty; at most one delta frame is emitted per tick, and
+ * every frame carries absolute values read from the session so the host always converges.
+ */
+class HostNotifier {
+
+    interface CounterSource {
+        int playerCount();
+
+        int answeredCount();
+
+        int[] choiceTallies();
+    }
+
+    private final CounterSource source;
+    private final Consumer<String> sink;
+    private final ScheduledExecutorService scheduler;
+    private final long tickMs;
+
+    private boolean scheduled;
+    private long lastEmitAt;
+
+    // Values in the last emitted frame; -1 / null mean "not sent yet"
+    private int sentPlayers = -1;
+    private int sentAnswered = -1;
+    private int[] sentTallies;
+
+    HostNotifier(CounterSource source, Consumer<String> sink, ScheduledExecutorService scheduler, long tickMs) {
+        this.source = source;
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.tickMs = tickMs;
+    }
+
+    /**
+     * Records that a counter changed. The update goes out on the next tick.
+     */
+    synchronized void markDirty() {
+        if (scheduled) return;
+        scheduled = true;
+        long delay = Math.max(0, lastEmitAt + tickMs - System.currentTimeMillis());
+        scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Emits any pending changes immediately. Called on state transitions so the host
+     * sees exact counts before e.g. question.end.
+     */
+    synchronized void flush() {
+        scheduled = false;
+        lastEmitAt = System.currentTimeMillis();
+
+        int players = source.playerCount();
+        int answered = source.answeredCount();
+        int[] tallies = source.choiceTallies();
+
+        StringBuilder sb = new StringBuilder("{\"type\":\"host.counters\"");
+        boolean changed = false;
+        if (players != sentPlayers) {
+            sb.append(",\"playerCount\":").append(players);
+            sentPlayers = players;
+            changed = true;
+        }
+        if (answered != sentAnswered) {
+            sb.append(",\"answeredCount\":").append(answered);
+            sentAnswered = answered;
+            changed = true;
+        }
+        if (!Arrays.equals(tallies, sentTallies)) {
+            sb.append(",\"tallies\":[");
+            for (int i = 0; i < tallies.length; i++) {
+                if (i > 0) sb.append(",");
+                sb.append(tallies[i]);
+            }
+            sb.append("]");
+            sentTallies = tallies;
+            changed = true;
+        }
+        if (changed) {
+            sink.accept(sb.append("}").toString());
+        }
+    }
+
+    /**
+     * Forgets what was last sent, so the next frame carries every counter again
+     * (e.g. after a new question starts or the session is reset).
+     */
+    synchronized void reset() {
+        sentPlayers = -1;
+        sentAnswered = -1;
+        sentTallies = null;
+    }
+}
@@ -0,0 +1,40 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Message bus within one JVM. Publishing delivers to the subscribers on the caller's
+ * thread, with no lock of its own: rooms on different shards publish in parallel, and a
+ * handler that needs one order across publishers serializes itself, as the command handler
+ * does. Handlers must only hand work off.
+ */
+class InProcessBus implements MessageBus {
+
+    private final Map<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
+
+    @Override
+    public void publish(String topic, String message) {
+        // Copy-on-write lists: a subscribe during delivery never disturbs the iteration
+        for (Consumer<String> handler : subscribers.getOrDefault(topic, List.of())) {
+            try {
+                handler.accept(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(String topic, Consumer<String> handler) {
+        subscribers.computeIfAbsent(topic, t -> new CopyOnWriteArrayList<>()).add(handler);
+    }
+
+    @Override
+    public void close() {
+        subscribers.clear();
+    }
+}
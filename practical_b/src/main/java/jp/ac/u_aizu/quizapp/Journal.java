@@ -0,0 +1,304 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Append-only, line-per-entry write-ahead journal with group commit.
+ * Callers append and get a future that completes once the entry is on disk. One committer
+ * thread collects everything appended within commitMs of the first pending entry, writes
+ * it in one go and issues a single fsync for the batch, so a burst of answers costs a few
+ * fsyncs rather than one each. Each entry's onDurable action runs on that thread once the
+ * entry is on disk, in append order, so whatever it applies is both durable and ordered.
+ * <p>
+ * If a write or fsync fails, the journal cuts the file back to its last durable length and
+ * fails every entry from then on: nothing after a hole in the journal may take effect.
+ * <p>
+ * A crash can leave a torn last line; {@link #replay} skips it, since its append was never
+ * acknowledged, and opening the journal cuts it off so the next entry starts on a line of
+ * its own.
+ */
+class Journal implements AutoCloseable {
+
+    private static final class Entry {
+        final byte[] line; // Empty for a cut
+        final Runnable onDurable;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Entry(byte[] line, Runnable onDurable) {
+            this.line = line;
+            this.onDurable = onDurable;
+        }
+    }
+
+    /**
+     * A position in the journal, taken by {@link #cut}.
+     */
+    static final class Cut {
+        final long offset;
+        final CompletableFuture<Void> done; // Completes after the cut's action
+
+        private Cut(long offset, CompletableFuture<Void> done) {
+            this.offset = offset;
+            this.done = done;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long commitNanos;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private volatile boolean closed;
+    private boolean failed; // A write failed; guarded by this
+
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private long appended; // File length once everything appended so far is written
+    private long written; // File length of the entries on disk (committer thread)
+
+    Journal(Path path, long commitMs) throws IOException {
+        this.path = path;
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        // Not APPEND: the tail may have to be read and cut first. Only the committer writes, always at the end
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(commitMs);
+        this.appended = lastLineEnd(channel);
+        if (appended < channel.size()) {
+            System.err.println("Journal " + path + ": dropping " + (channel.size() - appended) +
+                    " bytes of a torn last entry");
+            channel.truncate(appended);
+            channel.force(false);
+        }
+        channel.position(appended);
+        this.written = appended;
+
+        committer = new Thread(this::commitLoop, "festival-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Passes every complete entry from byte offset {@code from} on, oldest first, to the handler.
+     *
+     * @param from 0 or an offset returned by {@link #appendedBytes()}
+     * @return the number of entries replayed
+     */
+    static long replay(Path path, long from, Consumer<String> handler) throws IOException {
+        if (!Files.exists(path)) return 0;
+        byte[] bytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, channel.size() - from));
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) >= 0) {
+                // Read the rest
+            }
+            bytes = buffer.array();
+        }
+        // Only lines terminated by '\n' were written completely
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') end--;
+
+        long count = 0;
+        try (BufferedReader in = new BufferedReader(new StringReader(
+                new String(bytes, 0, end, StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                handler.accept(line);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Offset just past the last '\n', i.e. the length of the complete entries
+    private static long lastLineEnd(FileChannel channel) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(4096);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - chunk.capacity());
+            chunk.clear().limit((int) (end - start));
+            while (chunk.hasRemaining() && channel.read(chunk, start + chunk.position()) >= 0) {
+                // Read the rest
+            }
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) == '\n') return start + i + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if the journal holds complete entries up to the offset
+     */
+    static boolean hasEntriesUpTo(Path path, long offset) throws IOException {
+        if (offset == 0) return true;
+        if (!Files.exists(path)) return false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            return offset <= channel.size() && channel.read(last, offset - 1) == 1 && last.get(0) == '\n';
+        }
+    }
+
+    /**
+     * @param line      a single line (no '\n')
+     * @param onDurable run on the committer thread once the entry is on disk, after the actions
+     *                  of all earlier entries; never run if the entry cannot be written
+     * @return completes after onDurable, or exceptionally if the entry was not written
+     */
+    CompletableFuture<Void> append(String line, Runnable onDurable) {
+        return enqueue(new Entry((line + "\n").getBytes(StandardCharsets.UTF_8), onDurable)).durable;
+    }
+
+    /**
+     * Queues an action between the entries appended before and after this call, for a
+     * snapshot that must hold exactly the entries up to the returned offset.
+     */
+    synchronized Cut cut(Runnable action) {
+        Entry entry = enqueue(new Entry(new byte[0], action));
+        return new Cut(appended, entry.durable);
+    }
+
+    private synchronized Entry enqueue(Entry entry) {
+        if (closed || failed) {
+            entry.durable.completeExceptionally(new IOException(closed ? "Journal closed" : "Journal failed"));
+        } else {
+            appended += entry.line.length;
+            queue.add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the journal's length once every entry appended so far is on disk
+     */
+    synchronized long appendedBytes() {
+        return appended;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getEntries() {
+        return entries.get();
+    }
+
+    long getSyncs() {
+        return syncs.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        committer.interrupt();
+        try {
+            committer.join(1000);
+            channel.close();
+        } catch (InterruptedException | IOException e) {
+            // Best effort
+        }
+    }
+
+    private void commitLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                // Whatever queued up during the last fsync goes in this one, even with no window
+                queue.drainTo(batch);
+                // Group commit: wait briefly for the rest of a burst
+                long deadline = System.nanoTime() + commitNanos;
+                long wait;
+                while ((wait = deadline - System.nanoTime()) > 0) {
+                    Entry next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        int size = 0;
+        for (Entry entry : batch) {
+            size += entry.line.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Entry entry : batch) {
+            buffer.put(entry.line);
+        }
+        buffer.flip();
+
+        if (size > 0) {
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                fail(batch, e);
+                return;
+            }
+            written += size;
+            syncs.incrementAndGet();
+        }
+        for (Entry entry : batch) {
+            if (entry.line.length > 0) entries.incrementAndGet();
+        }
+        for (Entry entry : batch) {
+            if (entry.onDurable != null) {
+                try {
+                    entry.onDurable.run();
+                } catch (RuntimeException ex) {
+                    entry.durable.completeExceptionally(ex);
+                    continue;
+                }
+            }
+            entry.durable.complete(null);
+        }
+    }
+
+    // Stops taking entries and drops the part of the batch that may have reached the file
+    private void fail(List<Entry> batch, IOException e) {
+        System.err.println("Journal " + path + " failed, refusing further entries: " + e.getMessage());
+        synchronized (this) {
+            failed = true;
+            appended = written;
+            queue.drainTo(batch);
+        }
+        try {
+            channel.truncate(written);
+            channel.position(written);
+        } catch (IOException truncateError) {
+            // The disk is failing as well; a torn tail is still cut on the next open
+        }
+        for (Entry entry : batch) {
+            entry.durable.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,720 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The JSON both servers read and write, without a library.
+ * <p>
+ * {@link Reader} pulls tokens from a string in one pass: the caller walks the structure
+ * (beginObject, nextName, nextString, ...) and skips what it does not need, so nothing is
+ * built that is not asked for. Strings are unescaped as they are read, and a value inside
+ * a nested object or a string never matches a lookup meant for the outer object. Malformed
+ * input throws IllegalArgumentException with the offset.
+ * <p>
+ * {@link Writer} encodes straight to UTF-8 into its own byte buffer, which a response
+ * writes out as is; {@link Writer#reset()} lets one writer be used again.
+ */
+final class Json {
+
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Json() {
+    }
+
+    /**
+     * Reads the members of a top-level object in one pass. Strings come back unescaped,
+     * numbers and booleans as their text, nested objects and arrays as their JSON text;
+     * null members are left out.
+     *
+     * @return the members by name (the first of duplicates), or an empty map if the text is
+     *         not a single well-formed object
+     */
+    static Map<String, String> fields(String json) {
+        if (json == null) return new HashMap<>();
+        try {
+            Reader reader = new Reader(json);
+            Map<String, String> fields = reader.nextFields();
+            reader.endDocument();
+            return fields;
+        } catch (IllegalArgumentException e) {
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Escapes a string for use between double quotes, for JSON assembled with a StringBuilder.
+     *
+     * @return the escaped text, the string itself if nothing needs escaping, "" for null
+     */
+    static String escape(String s) {
+        if (s == null) return "";
+        int i = 0;
+        while (i < s.length() && !needsEscape(s.charAt(i))) i++;
+        if (i == s.length()) return s;
+
+        StringBuilder sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!needsEscape(c)) {
+                sb.append(c);
+                continue;
+            }
+            String shortForm = shortEscape(c);
+            if (shortForm != null) {
+                sb.append(shortForm);
+            } else {
+                sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < 0x20 || c == '"' || c == '\\';
+    }
+
+    private static String shortEscape(char c) {
+        switch (c) {
+            case '"': return "\\\"";
+            case '\\': return "\\\\";
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\t': return "\\t";
+            case '\b': return "\\b";
+            case '\f': return "\\f";
+            default: return null;
+        }
+    }
+
+    /**
+     * Pull tokenizer over one JSON text. Each value must be consumed (read or skipped) before
+     * hasNext() is asked for the next one.
+     */
+    static final class Reader {
+        private final char[] in; // Indexing an array beats String.charAt on long inputs
+        private final int length;
+        private int pos;
+        // Per open container: whether it already holds a value, so the next one needs a comma
+        private boolean[] hasValue = new boolean[16];
+        private int depth;
+
+        Reader(String json) {
+            this.in = json.toCharArray();
+            this.length = in.length;
+        }
+
+        Token peek() {
+            skipWhitespace();
+            if (pos >= length) return Token.END_DOCUMENT;
+            char c = in[pos];
+            switch (c) {
+                case '{': return Token.BEGIN_OBJECT;
+                case '}': return Token.END_OBJECT;
+                case '[': return Token.BEGIN_ARRAY;
+                case ']': return Token.END_ARRAY;
+                case '"': return Token.STRING;
+                case 't':
+                case 'f': return Token.BOOLEAN;
+                case 'n': return Token.NULL;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) return Token.NUMBER;
+                    throw error("unexpected '" + c + "'");
+            }
+        }
+
+        void beginObject() {
+            open('{');
+        }
+
+        /**
+         * Checks that nothing but whitespace follows the value just read.
+         */
+        void endDocument() {
+            skipWhitespace();
+            if (depth > 0 || pos < length) throw error("unexpected content after the value");
+        }
+
+        void endObject() {
+            close('}');
+        }
+
+        void beginArray() {
+            open('[');
+        }
+
+        void endArray() {
+            close(']');
+        }
+
+        /**
+         * @return whether the current object or array has another member; consumes the comma before it
+         */
+        boolean hasNext() {
+            skipWhitespace();
+            if (pos >= length) throw error("unterminated " + (depth > 0 ? "container" : "document"));
+            char c = in[pos];
+            if (c == '}' || c == ']') return false;
+            if (depth > 0 && hasValue[depth - 1]) {
+                if (c != ',') throw error("expected ','");
+                pos++;
+                hasValue[depth - 1] = false;
+            }
+            return true;
+        }
+
+        String nextName() {
+            if (peek() != Token.STRING) throw error("expected a member name");
+            String name = readString();
+            skipWhitespace();
+            if (pos >= length || in[pos] != ':') throw error("expected ':'");
+            pos++;
+            return name;
+        }
+
+        /**
+         * Reads a member name that is expected to be one of a few, without allocating it.
+         *
+         * @return the equal element of {@code known}, or null for any other name
+         */
+        String nextName(String[] known) {
+            if (peek() != Token.STRING) throw error("expected a member name");
+            int start = pos + 1;
+            int end = start;
+            while (end < length && in[end] != '"' && in[end] != '\\') end++;
+            String name = null;
+            if (end < length && in[end] == '"') {
+                for (String candidate : known) {
+                    if (matches(candidate, start, end)) {
+                        name = candidate;
+                        break;
+                    }
+                }
+                pos = end + 1;
+            } else {
+                String escaped = readString();
+                for (String candidate : known) {
+                    if (candidate.equals(escaped)) {
+                        name = candidate;
+                        break;
+                    }
+                }
+            }
+            skipWhitespace();
+            if (pos >= length || in[pos] != ':') throw error("expected ':'");
+            pos++;
+            return name;
+        }
+
+        String nextString() {
+            if (peek() != Token.STRING) throw error("expected a string");
+            String s = readString();
+            valueRead();
+            return s;
+        }
+
+        /**
+         * Reads an integer. If it is not one (a fraction, or too large), the reader stays at the
+         * number, so the caller may still skip it.
+         */
+        long nextLong() {
+            long value = readLong();
+            valueRead();
+            return value;
+        }
+
+        int nextInt() {
+            int start = pos;
+            long value = readLong();
+            if (value != (int) value) {
+                pos = start;
+                throw error("out of int range: " + value);
+            }
+            valueRead();
+            return (int) value;
+        }
+
+        boolean nextBoolean() {
+            skipWhitespace();
+            boolean value = startsWith("true");
+            literal(value ? "true" : "false");
+            valueRead();
+            return value;
+        }
+
+        /**
+         * Reads a string, number or boolean as text.
+         *
+         * @return the unescaped string, the number or boolean as written, or null for null
+         */
+        String nextScalar() {
+            Token token = peek();
+            String value;
+            switch (token) {
+                case STRING:
+                    value = readString();
+                    break;
+                case NUMBER:
+                    value = readNumber();
+                    break;
+                case BOOLEAN:
+                    return nextBoolean() ? "true" : "false";
+                case NULL:
+                    literal("null");
+                    value = null;
+                    break;
+                default:
+                    throw error("expected a string, number or boolean");
+            }
+            valueRead();
+            return value;
+        }
+
+        /**
+         * Reads the next value, an object, as described for {@link Json#fields}.
+         */
+        Map<String, String> nextFields() {
+            Map<String, String> fields = new HashMap<>();
+            beginObject();
+            while (hasNext()) {
+                String name = nextName();
+                Token token = peek();
+                String value = token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY ? nextRaw() : nextScalar();
+                if (value != null) fields.putIfAbsent(name, value);
+            }
+            endObject();
+            return fields;
+        }
+
+        /**
+         * Skips the next value, including everything nested in it. Inside a skipped object or
+         * array only strings and bracket nesting are checked.
+         */
+        void skipValue() {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                case BEGIN_ARRAY: {
+                    int level = 0;
+                    do {
+                        if (pos >= length) throw error("unterminated container");
+                        char c = in[pos];
+                        if (c == '"') {
+                            skipString();
+                            continue;
+                        }
+                        if (c == '{' || c == '[') level++;
+                        else if (c == '}' || c == ']') level--;
+                        pos++;
+                    } while (level > 0);
+                    valueRead();
+                    break;
+                }
+                case STRING:
+                    skipString();
+                    valueRead();
+                    break;
+                default:
+                    nextScalar();
+            }
+        }
+
+        /**
+         * Skips the next value and returns its source text, nested values included.
+         */
+        String nextRaw() {
+            skipWhitespace();
+            int start = pos;
+            skipValue();
+            return new String(in, start, pos - start);
+        }
+
+        private void open(char c) {
+            skipWhitespace();
+            if (pos >= length || in[pos] != c) throw error("expected '" + c + "'");
+            pos++;
+            push();
+        }
+
+        private void close(char c) {
+            skipWhitespace();
+            if (pos >= length || in[pos] != c) throw error("expected '" + c + "'");
+            pos++;
+            depth--;
+            valueRead();
+        }
+
+        private void push() {
+            if (depth == hasValue.length) hasValue = Arrays.copyOf(hasValue, depth * 2);
+            hasValue[depth++] = false;
+        }
+
+        private void valueRead() {
+            if (depth > 0) hasValue[depth - 1] = true;
+        }
+
+        private void skipWhitespace() {
+            while (pos < length) {
+                char c = in[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return;
+                pos++;
+            }
+        }
+
+        private void literal(String word) {
+            if (!startsWith(word)) throw error("expected " + word);
+            pos += word.length();
+        }
+
+        private boolean startsWith(String word) {
+            if (pos + word.length() > length) return false;
+            for (int i = 0; i < word.length(); i++) {
+                if (in[pos + i] != word.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        // -? (0 | [1-9][0-9]*) (.[0-9]+)? ([eE][+-]?[0-9]+)?, as in RFC 8259; "01" reads as 0 followed by junk
+        private String readNumber() {
+            int start = pos;
+            if (pos < length && in[pos] == '-') pos++;
+            if (pos < length && in[pos] == '0') {
+                pos++;
+            } else if (digits() == 0) {
+                throw error("malformed number");
+            }
+            if (pos < length && in[pos] == '.') {
+                pos++;
+                if (digits() == 0) throw error("malformed number");
+            }
+            if (pos < length && (in[pos] == 'e' || in[pos] == 'E')) {
+                pos++;
+                if (pos < length && (in[pos] == '+' || in[pos] == '-')) pos++;
+                if (digits() == 0) throw error("malformed number");
+            }
+            return new String(in, start, pos - start);
+        }
+
+        private long readLong() {
+            if (peek() != Token.NUMBER) throw error("expected a number");
+            int start = pos;
+            // Short plain integers, which ids and choices always are, are read in place without a String
+            boolean negative = in[pos] == '-';
+            int first = negative ? pos + 1 : pos;
+            int end = first;
+            long value = 0;
+            while (end < length && end - first < 18 && in[end] >= '0' && in[end] <= '9') {
+                value = value * 10 + (in[end++] - '0');
+            }
+            boolean plain = end > first && (in[first] != '0' || end == first + 1)
+                    && (end == length || (in[end] != '.' && in[end] != 'e' && in[end] != 'E' && (in[end] < '0' || in[end] > '9')));
+            if (plain) {
+                pos = end;
+                return negative ? -value : value;
+            }
+            String number = readNumber();
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("not an integer: " + number);
+            }
+        }
+
+        private boolean matches(String candidate, int start, int end) {
+            if (candidate.length() != end - start) return false;
+            for (int i = start; i < end; i++) {
+                if (in[i] != candidate.charAt(i - start)) return false;
+            }
+            return true;
+        }
+
+        private int digits() {
+            int start = pos;
+            while (pos < length && in[pos] >= '0' && in[pos] <= '9') pos++;
+            return pos - start;
+        }
+
+        private void skipString() {
+            pos++;
+            while (pos < length) {
+                char c = in[pos++];
+                if (c == '"') return;
+                if (c == '\\') pos++;
+            }
+            throw error("unterminated string");
+        }
+
+        // At the opening quote
+        private String readString() {
+            int start = ++pos;
+            // Most strings hold no escapes and come out as one substring
+            while (pos < length) {
+                char c = in[pos];
+                if (c == '"') return new String(in, start, pos++ - start);
+                if (c == '\\') break;
+                pos++;
+            }
+            StringBuilder sb = new StringBuilder(pos - start + 16).append(in, start, pos - start);
+            while (pos < length) {
+                char c = in[pos++];
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= length) break;
+                char e = in[pos++];
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > length) throw error("truncated \\u escape");
+                        try {
+                            sb.append((char) Integer.parseInt(new String(in, pos, 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("bad \\u escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw error("bad escape '\\" + e + "'");
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Malformed JSON at " + pos + ": " + message);
+        }
+    }
+
+    /**
+     * Writes JSON as UTF-8 into a growable byte buffer, inserting commas between members.
+     */
+    static final class Writer {
+        private byte[] buf;
+        private int pos;
+        // Per open container: whether it already holds a value, so the next one needs a comma
+        private boolean[] hasValue = new boolean[16];
+        private int depth;
+        private boolean afterName;
+
+        Writer() {
+            this(256);
+        }
+
+        Writer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        Writer beginObject() {
+            separate();
+            put('{');
+            push();
+            return this;
+        }
+
+        Writer endObject() {
+            depth--;
+            put('}');
+            return this;
+        }
+
+        Writer beginArray() {
+            separate();
+            put('[');
+            push();
+            return this;
+        }
+
+        Writer endArray() {
+            depth--;
+            put(']');
+            return this;
+        }
+
+        Writer name(String name) {
+            separate();
+            string(name);
+            put(':');
+            afterName = true;
+            return this;
+        }
+
+        /**
+         * Writes a string, or null.
+         */
+        Writer value(String value) {
+            separate();
+            if (value == null) {
+                ascii("null");
+            } else {
+                string(value);
+            }
+            return this;
+        }
+
+        Writer value(long value) {
+            separate();
+            ascii(Long.toString(value));
+            return this;
+        }
+
+        Writer value(boolean value) {
+            separate();
+            ascii(value ? "true" : "false");
+            return this;
+        }
+
+        /**
+         * Writes already-encoded JSON as the next value.
+         */
+        Writer rawValue(String json) {
+            separate();
+            utf8(json);
+            return this;
+        }
+
+        // Shorthands for an object member
+        Writer field(String name, String value) {
+            return name(name).value(value);
+        }
+
+        Writer field(String name, long value) {
+            return name(name).value(value);
+        }
+
+        Writer field(String name, boolean value) {
+            return name(name).value(value);
+        }
+
+        /**
+         * Empties the writer, keeping its buffer.
+         */
+        Writer reset() {
+            pos = 0;
+            depth = 0;
+            afterName = false;
+            return this;
+        }
+
+        int size() {
+            return pos;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, pos);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, pos, StandardCharsets.UTF_8);
+        }
+
+        private void separate() {
+            if (afterName) {
+                afterName = false;
+                return;
+            }
+            if (depth > 0) {
+                if (hasValue[depth - 1]) put(',');
+                hasValue[depth - 1] = true;
+            }
+        }
+
+        private void push() {
+            if (depth == hasValue.length) hasValue = Arrays.copyOf(hasValue, depth * 2);
+            hasValue[depth++] = false;
+        }
+
+        private void string(String s) {
+            put('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (!needsEscape(c)) {
+                        put(c);
+                    } else {
+                        String shortForm = shortEscape(c);
+                        if (shortForm != null) {
+                            ascii(shortForm);
+                        } else {
+                            ascii("\\u00");
+                            put(HEX[c >> 4]);
+                            put(HEX[c & 0xF]);
+                        }
+                    }
+                } else {
+                    i = encode(s, i);
+                }
+            }
+            put('"');
+        }
+
+        // Text that needs no escaping: numbers, literals, pre-encoded JSON
+        private void ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[pos++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void utf8(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) put(c);
+                else i = encode(s, i);
+            }
+        }
+
+        // Encodes the non-ASCII character at i; returns the index of its last char
+        private int encode(String s, int i) {
+            ensure(4);
+            char c = s.charAt(i);
+            if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?'; // Unpaired, as String.getBytes does
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return i;
+        }
+
+        private void put(char c) {
+            if (pos == buf.length) ensure(1);
+            buf[pos++] = (byte) c;
+        }
+
+        private void ensure(int more) {
+            if (pos + more > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+        }
+    }
+}
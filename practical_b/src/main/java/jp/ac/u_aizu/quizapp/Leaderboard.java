@@ -0,0 +1,227 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Ranking of the players in a session, kept up to date as scores change instead of being
+ * re-sorted per request. Players are ordered by score (descending), then by join time and
+ * join order, in a treap whose nodes carry subtree sizes, so rank lookups, top-K and page
+ * queries are O(log n) (plus the size of the result).
+ * <p>
+ * Every change bumps a version, so callers can cache what they render from it until the
+ * next change.
+ */
+class Leaderboard {
+
+    /**
+     * One ranked row. Immutable, so rows can be handed out without copying.
+     */
+    static final class Entry {
+        final int rank;
+        final String playerId;
+        final String nickname;
+        final int score;
+
+        Entry(int rank, String playerId, String nickname, int score) {
+            this.rank = rank;
+            this.playerId = playerId;
+            this.nickname = nickname;
+            this.score = score;
+        }
+    }
+
+    private static final class Node {
+        final String playerId;
+        final String nickname;
+        final long joinedAt;
+        final long seq;
+        final int priority;
+        int score;
+        Node left, right;
+        int size = 1;
+
+        Node(String playerId, String nickname, long joinedAt, long seq, int priority) {
+            this.playerId = playerId;
+            this.nickname = nickname;
+            this.joinedAt = joinedAt;
+            this.seq = seq;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final SplittableRandom random = new SplittableRandom();
+    private Node root;
+    private long nextSeq;
+    private long version;
+
+    /**
+     * Adds a player with a score of zero. Adding a known player does nothing.
+     */
+    void add(String playerId, String nickname, long joinedAt) {
+        add(playerId, nickname, joinedAt, 0);
+    }
+
+    /**
+     * Adds a player with a score, e.g. when restoring a session. Adding a known player does nothing.
+     */
+    synchronized void add(String playerId, String nickname, long joinedAt, int score) {
+        if (nodes.containsKey(playerId)) return;
+        Node node = new Node(playerId, nickname, joinedAt, nextSeq++, random.nextInt());
+        node.score = score;
+        nodes.put(playerId, node);
+        root = insert(root, node);
+        version++;
+    }
+
+    /**
+     * Moves a player to the position for their new score. Scores only grow within a session,
+     * so a stale (lower) score from a caller that lost a race is ignored.
+     */
+    synchronized void update(String playerId, int score) {
+        Node node = nodes.get(playerId);
+        if (node == null || score <= node.score) return;
+        root = remove(root, node);
+        node.score = score;
+        node.left = node.right = null;
+        node.size = 1;
+        root = insert(root, node);
+        version++;
+    }
+
+    synchronized int size() {
+        return size(root);
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * @return the player's 1-based rank, or 0 if the player is unknown
+     */
+    synchronized int rank(String playerId) {
+        Node target = nodes.get(playerId);
+        if (target == null) return 0;
+
+        int before = 0;
+        Node t = root;
+        while (t != target) {
+            if (compare(target, t) < 0) {
+                t = t.left;
+            } else {
+                before += size(t.left) + 1;
+                t = t.right;
+            }
+        }
+        return before + size(target.left) + 1;
+    }
+
+    /**
+     * @return the player's current row, or null if the player is unknown
+     */
+    synchronized Entry entry(String playerId) {
+        Node node = nodes.get(playerId);
+        return node == null ? null : new Entry(rank(playerId), node.playerId, node.nickname, node.score);
+    }
+
+    synchronized List<Entry> top(int k) {
+        return range(0, k);
+    }
+
+    /**
+     * @param page 0-based page number
+     */
+    synchronized List<Entry> page(int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) return Collections.emptyList();
+        return range((long) page * pageSize, pageSize);
+    }
+
+    private List<Entry> range(long from, int count) {
+        List<Entry> out = new ArrayList<>((int) Math.max(0, Math.min(count, size(root) - from)));
+        if (from < size(root) && count > 0) collect(root, 0, from, from + count, out);
+        return out;
+    }
+
+    // In-order walk of the rows with rank offsets in [from, to), skipping whole subtrees outside it
+    private static void collect(Node t, long offset, long from, long to, List<Entry> out) {
+        if (t == null || offset >= to || offset + t.size <= from) return;
+        collect(t.left, offset, from, to, out);
+        long index = offset + size(t.left);
+        if (index >= from && index < to) {
+            out.add(new Entry((int) index + 1, t.playerId, t.nickname, t.score));
+        }
+        collect(t.right, index + 1, from, to, out);
+    }
+
+    // ========================
+    // Treap
+    // ========================
+
+    private static int compare(Node a, Node b) {
+        if (a.score != b.score) return Integer.compare(b.score, a.score);
+        if (a.joinedAt != b.joinedAt) return Long.compare(a.joinedAt, b.joinedAt);
+        return Long.compare(a.seq, b.seq);
+    }
+
+    private static int size(Node t) {
+        return t == null ? 0 : t.size;
+    }
+
+    private static Node fix(Node t) {
+        t.size = size(t.left) + size(t.right) + 1;
+        return t;
+    }
+
+    private static Node insert(Node t, Node node) {
+        if (t == null) return node;
+        if (node.priority > t.priority) {
+            Node[] parts = split(t, node);
+            node.left = parts[0];
+            node.right = parts[1];
+            return fix(node);
+        }
+        if (compare(node, t) < 0) t.left = insert(t.left, node);
+        else t.right = insert(t.right, node);
+        return fix(t);
+    }
+
+    private static Node remove(Node t, Node node) {
+        if (t == null) return null;
+        if (t == node) return merge(t.left, t.right);
+        if (compare(node, t) < 0) t.left = remove(t.left, node);
+        else t.right = remove(t.right, node);
+        return fix(t);
+    }
+
+    // Splits into nodes ordered before the key and the rest
+    private static Node[] split(Node t, Node key) {
+        if (t == null) return new Node[2];
+        if (compare(t, key) < 0) {
+            Node[] parts = split(t.right, key);
+            t.right = parts[0];
+            parts[0] = fix(t);
+            return parts;
+        }
+        Node[] parts = split(t.left, key);
+        t.left = parts[1];
+        parts[1] = fix(t);
+        return parts;
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return fix(a);
+        }
+        b.left = merge(a, b.left);
+        return fix(b);
+    }
+}
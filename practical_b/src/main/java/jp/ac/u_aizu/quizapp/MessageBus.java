@@ -0,0 +1,41 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.function.Consumer;
+
+/**
+ * Publish/subscribe transport between FestivalServer nodes, chosen at startup with
+ * -Dfestival.bus=local|tcp://host:port.
+ * <p>
+ * Every subscriber of a topic receives the topic's messages in the same order on every node,
+ * including messages the node published itself. Session replication depends on that order:
+ * each node applies the same commands in the same sequence. Between nodes the order is the
+ * broker's; within one JVM ({@link InProcessBus}) it is the order in which the handler,
+ * serializing itself, takes concurrent deliveries.
+ * Messages are single-line strings.
+ */
+interface MessageBus extends AutoCloseable {
+
+    void publish(String topic, String message);
+
+    void subscribe(String topic, Consumer<String> handler);
+
+    @Override
+    void close();
+
+    /**
+     * "local" delivers within this JVM (a single node); tcp://host:port connects to a {@link TcpBroker}.
+     */
+    static MessageBus fromSystemProperties() throws IOException {
+        String value = System.getProperty("festival.bus", "local");
+        if (value.startsWith("tcp://")) {
+            URI uri = URI.create(value);
+            return new TcpBus(uri.getHost(), uri.getPort() < 0 ? TcpBroker.DEFAULT_PORT : uri.getPort());
+        }
+        if (!"local".equalsIgnoreCase(value)) {
+            System.err.println("Unknown festival.bus=" + value + ", using local");
+        }
+        return new InProcessBus();
+    }
+}
@@ -0,0 +1,326 @@
+package jp.ac.u_aizu.quizapp;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An HTTP exchange read by the WebSocket engine's selector loops, so the existing
+ * HttpHandlers can be served on the same port as the WebSocket upgrade.
+ * The request body is fully buffered before the handler runs, and the response is
+ * buffered until the handler closes the exchange, then queued on the connection in one piece.
+ */
+class NioHttpExchange extends HttpExchange {
+
+    interface ResponseSink {
+        void respond(ByteBuffer response, boolean keepAlive);
+    }
+
+    private final Context context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private final boolean keepAlive;
+    private final ResponseSink sink;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final long receivedNanos = System.nanoTime(); // Request fully read, before any executor queue
+
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private final ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+    private int responseCode = -1;
+    private long declaredLength = -1; // What the handler passed to sendResponseHeaders
+    private boolean completed;
+
+    NioHttpExchange(Context context, String method, URI uri, String protocol, Headers requestHeaders, byte[] body,
+                    InetSocketAddress localAddress, InetSocketAddress remoteAddress, boolean keepAlive,
+                    ResponseSink sink) {
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.keepAlive = keepAlive;
+        this.sink = sink;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.responseBody = new OutputStream() {
+            @Override
+            public void write(int b) {
+                responseBuffer.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                responseBuffer.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                NioHttpExchange.this.close();
+            }
+        };
+    }
+
+    /**
+     * Runs the handler and makes sure a response goes out even if it throws or forgets to close.
+     */
+    void run() {
+        try {
+            context.getHandler().handle(this);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            if (getResponseCode() < 0) {
+                responseHeaders.clear();
+                responseBuffer.reset();
+                try {
+                    sendResponseHeaders(500, -1);
+                } catch (IOException ignored) {
+                    // Not possible before headers are sent
+                }
+            }
+        }
+        close();
+    }
+
+    /**
+     * @return System.nanoTime() when the request had been read, to measure how long it waited for a handler
+     */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (completed) return;
+        completed = true;
+        if (responseCode < 0) responseCode = 500;
+
+        boolean head = "HEAD".equals(method);
+        // 204 and 304 carry no Content-Length; for a 304 it would describe the cached representation
+        boolean bodiless = responseCode == 204 || responseCode == 304;
+        byte[] body = head || bodiless ? new byte[0] : responseBuffer.toByteArray();
+
+        long length = head ? headLength() : body.length;
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("HTTP/1.1 ").append(responseCode).append(' ').append(reasonPhrase(responseCode)).append("\r\n");
+        responseHeaders.remove("Content-Length");
+        responseHeaders.remove("Transfer-Encoding");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                sb.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (!bodiless) sb.append("Content-Length: ").append(length).append("\r\n");
+        if (!keepAlive) sb.append("Connection: close\r\n");
+        sb.append("\r\n");
+
+        byte[] headerBytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer response = ByteBuffer.allocate(headerBytes.length + body.length);
+        response.put(headerBytes).put(body).flip();
+        sink.respond(response.asReadOnlyBuffer(), keepAlive);
+    }
+
+    // A HEAD response states the length a GET would have: passed to sendResponseHeaders, set
+    // as a header (as the JDK server expects), or else that of the body the handler wrote anyway
+    private long headLength() {
+        if (declaredLength > 0) return declaredLength;
+        String header = responseHeaders.getFirst("Content-Length");
+        if (header != null) {
+            try {
+                return Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                // Fall back to the buffer
+            }
+        }
+        return responseBuffer.size();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public synchronized void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode >= 0) throw new IOException("headers already sent");
+        // The body is buffered, so Content-Length is set on close; the length only matters for HEAD
+        responseCode = rCode;
+        declaredLength = responseLength;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public synchronized int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) attributes.remove(name);
+        else attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) requestBody = i;
+        if (o != null) responseBody = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    // ========================
+    // Context
+    // ========================
+
+    /**
+     * A path prefix and its handler, as registered with {@link WebSocketEngine#createContext}.
+     */
+    static class Context extends HttpContext {
+        private final String path;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new ArrayList<>();
+        private volatile Authenticator authenticator;
+
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return null; // Served by WebSocketEngine, not an HttpServer
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
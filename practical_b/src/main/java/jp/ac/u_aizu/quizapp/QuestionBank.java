@@ -0,0 +1,121 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable set of questions, in file order and indexed by ID. A reload builds a new bank
+ * and swaps it in as a whole, so a reader sees either the old bank or the new one, never
+ * a mix.
+ * <p>
+ * Everything /api/questions serves is prepared once per bank: the full JSON array (plain
+ * and gzipped), an ETag derived from its content, and each question's JSON object, from
+ * which pages and search results are assembled without escaping anything again.
+ */
+final class QuestionBank {
+
+    static final QuestionBank EMPTY = new QuestionBank(List.of());
+
+    private final List<FestivalServer.Question> questions;
+    private final Map<Integer, FestivalServer.Question> byId;
+    private final String[] fragments;
+    private final String[] searchText; // Lower-cased question text and choices
+    private final byte[] json;
+    private final byte[] gzipped;
+    private final String etag;
+
+    QuestionBank(List<FestivalServer.Question> questions) {
+        this.questions = List.copyOf(questions);
+        Map<Integer, FestivalServer.Question> index = new HashMap<>();
+        for (FestivalServer.Question q : this.questions) {
+            index.putIfAbsent(q.id, q);
+        }
+        this.byId = Map.copyOf(index);
+
+        int n = this.questions.size();
+        this.fragments = new String[n];
+        this.searchText = new String[n];
+        StringBuilder all = new StringBuilder("[");
+        for (int i = 0; i < n; i++) {
+            FestivalServer.Question q = this.questions.get(i);
+            fragments[i] = toJson(q);
+            searchText[i] = (q.text + "\n" + String.join("\n", q.choices)).toLowerCase(Locale.ROOT);
+            if (i > 0) all.append(",");
+            all.append(fragments[i]);
+        }
+        this.json = all.append("]").toString().getBytes(StandardCharsets.UTF_8);
+        this.gzipped = StaticAssets.gzip(json);
+
+        // Content-derived, so every node serving the same bank hands out the same tag
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        this.etag = "\"q" + Long.toHexString(crc.getValue()) + "-" + json.length + "\"";
+    }
+
+    List<FestivalServer.Question> all() {
+        return questions;
+    }
+
+    /**
+     * @return the question, or null if the bank has no question with that ID
+     */
+    FestivalServer.Question get(int id) {
+        return byId.get(id);
+    }
+
+    int size() {
+        return questions.size();
+    }
+
+    /**
+     * @return the whole bank as a JSON array, UTF-8
+     */
+    byte[] json() {
+        return json;
+    }
+
+    byte[] gzippedJson() {
+        return gzipped;
+    }
+
+    String etag() {
+        return etag;
+    }
+
+    /**
+     * Returns one page of the questions whose text or choices contain the filter
+     * (case-insensitive; null or empty matches everything).
+     */
+    String page(String filter, int page, int size) {
+        String needle = filter == null ? "" : filter.toLowerCase(Locale.ROOT);
+        long from = (long) page * size;
+        int total = 0;
+        StringBuilder entries = new StringBuilder("[");
+        for (int i = 0; i < fragments.length; i++) {
+            if (!needle.isEmpty() && !searchText[i].contains(needle)) continue;
+            if (total >= from && total < from + size) {
+                if (entries.length() > 1) entries.append(",");
+                entries.append(fragments[i]);
+            }
+            total++;
+        }
+        return "{\"page\":" + page + ",\"size\":" + size + ",\"total\":" + total +
+                ",\"entries\":" + entries.append("]") + "}";
+    }
+
+    private static String toJson(FestivalServer.Question q) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"id\":").append(q.id)
+          .append(",\"text\":\"").append(Json.escape(q.text))
+          .append("\",\"choices\":[");
+        for (int j = 0; j < q.choices.length; j++) {
+            if (j > 0) sb.append(",");
+            sb.append("\"").append(Json.escape(q.choices[j])).append("\"");
+        }
+        return sb.append("],\"correctIndex\":").append(q.correctIndex).append("}").toString();
+    }
+}
@@ -0,0 +1,67 @@
+package jp.ac.u_aizu.quizapp;
+
+/**
+ * Records answers and awards points. Each (player, question) pair is accepted exactly once:
+ * the answer store admits a single answer per player, and only the thread whose answer was
+ * recorded scores it, so a re-sent answer can never be credited twice. Scores are added atomically.
+ * <p>
+ * Modes (-Dfestival.scoring=flat|time):
+ * FLAT awards one point per correct answer.
+ * TIME_WEIGHTED awards up to {@link #MAX_POINTS} for a correct answer, decreasing linearly
+ * with the answer latency, down to half at the time limit.
+ */
+class ScoringEngine {
+
+    enum Mode {
+        FLAT, TIME_WEIGHTED
+    }
+
+    enum Outcome {
+        CORRECT, INCORRECT, DUPLICATE
+    }
+
+    static final int MAX_POINTS = 1000;
+
+    private final Mode mode;
+
+    ScoringEngine(Mode mode) {
+        this.mode = mode;
+    }
+
+    static ScoringEngine fromSystemProperties() {
+        String value = System.getProperty("festival.scoring", "flat");
+        return new ScoringEngine("time".equalsIgnoreCase(value) ? Mode.TIME_WEIGHTED : Mode.FLAT);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Accepts the answer if the player has not answered this question yet, and credits the
+     * player when it is correct.
+     *
+     * @param answers     answer columns for this question
+     * @param latencyMs   time since the question started (QuizSession.questionStartTime)
+     * @param timeLimitMs time allowed for the question
+     */
+    Outcome submit(AnswerStore.QuestionAnswers answers, FestivalServer.Player player, int choice,
+                   FestivalServer.Question question, long latencyMs, long timeLimitMs) {
+        int latency = (int) Math.max(0, Math.min(Integer.MAX_VALUE, latencyMs));
+        if (!answers.record(player.index, choice, latency)) {
+            return Outcome.DUPLICATE;
+        }
+        if (question.correctIndex != choice) {
+            return Outcome.INCORRECT;
+        }
+        player.score.addAndGet(points(latency, timeLimitMs));
+        return Outcome.CORRECT;
+    }
+
+    int points(long elapsedMs, long timeLimitMs) {
+        if (mode == Mode.FLAT) return 1;
+        if (timeLimitMs <= 0) return MAX_POINTS;
+        double taken = Math.min(1.0, Math.max(0, elapsedMs) / (double) timeLimitMs);
+        return (int) Math.round(MAX_POINTS * (1.0 - taken / 2));
+    }
+}
@@ -0,0 +1,52 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * The single writer for the quiz sessions of one shard of rooms. Every mutation (join,
+ * answer, question transitions, reset) runs as a command on one thread, in submission
+ * order, so two transitions of a room can never interleave. Rooms on different shards
+ * run in parallel. See FestivalServer.Room, which republishes its snapshot after each command.
+ */
+class SessionLoop {
+
+    private final ExecutorService executor;
+
+    SessionLoop(String name) {
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a command and returns its result asynchronously.
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(command.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Queues a command whose result nobody waits for; failures are logged.
+     */
+    void execute(Runnable command) {
+        submit(() -> {
+            command.run();
+            return null;
+        }).whenComplete((ignored, e) -> {
+            if (e != null) e.printStackTrace();
+        });
+    }
+}
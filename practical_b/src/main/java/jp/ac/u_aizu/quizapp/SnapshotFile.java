@@ -0,0 +1,300 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of every room's session, written and read through a MappedByteBuffer.
+ * A snapshot holds exactly the journal entries before byte offset N, so startup loads it and
+ * replays only the entries from N on.
+ * <p>
+ * Two slot files are written alternately, each with a generation and a CRC over its body;
+ * a crash in the middle of a write leaves the other slot intact. Files are overwritten in
+ * place, never truncated or renamed, since a mapping may still be open on them.
+ * <p>
+ * Layout (big-endian): header {magic, version, generation, body length, body CRC32}, then
+ * N and the room count, then per room: code, state, question index and start time, the questions,
+ * the players in join order (id, nickname, join time, score) and, per answered question,
+ * the choice and latency columns indexed like the players.
+ */
+class SnapshotFile {
+
+    private static final int MAGIC = 0x46534E50; // "FSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+
+    /**
+     * The rooms as of one journal offset.
+     */
+    static final class Contents {
+        final long journalOffset;
+        final List<RoomImage> rooms;
+
+        Contents(long journalOffset, List<RoomImage> rooms) {
+            this.journalOffset = journalOffset;
+            this.rooms = rooms;
+        }
+    }
+
+    /**
+     * Copy of one room's session, taken on the room's shard and encoded off it.
+     */
+    static final class RoomImage {
+        String code;
+        FestivalServer.QuizState state;
+        int currentQuestionIndex;
+        long questionStartTime;
+        List<FestivalServer.Question> questions;
+        String[] playerIds;
+        String[] nicknames;
+        long[] joinedAt;
+        int[] scores;
+        final List<AnswerColumn> answers = new ArrayList<>();
+    }
+
+    static final class AnswerColumn {
+        final int questionId;
+        final int choiceCount;
+        final byte[] choices; // choice + 1 per player, 0 while unanswered
+        final int[] latencies;
+
+        AnswerColumn(int questionId, int choiceCount, byte[] choices, int[] latencies) {
+            this.questionId = questionId;
+            this.choiceCount = choiceCount;
+            this.choices = choices;
+            this.latencies = latencies;
+        }
+    }
+
+    private final Path[] slots;
+    private long generation;
+    private int nextSlot;
+
+    SnapshotFile(Path base) {
+        this.slots = new Path[] {
+                base.resolveSibling(base.getFileName() + ".snap0"),
+                base.resolveSibling(base.getFileName() + ".snap1")
+        };
+    }
+
+    /**
+     * Loads the newest intact slot and makes the next write go to the other one.
+     *
+     * @return the snapshot, or null if there is no intact one
+     */
+    Contents load() throws IOException {
+        Contents newest = null;
+        for (int i = 0; i < slots.length; i++) {
+            ByteBuffer body = mapBody(slots[i]);
+            if (body == null) continue;
+            long slotGeneration = body.getLong(8);
+            if (newest == null || slotGeneration > generation) {
+                newest = decode(body);
+                generation = slotGeneration;
+                nextSlot = 1 - i;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Writes the rooms, which hold exactly the journal entries before journalOffset, to the
+     * older slot and forces it to disk.
+     */
+    void write(long journalOffset, List<RoomImage> rooms) throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        int size = HEADER_BYTES + 8 + 4;
+        for (RoomImage room : rooms) {
+            size += measure(room, strings);
+        }
+
+        Path slot = slots[nextSlot];
+        Path dir = slot.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel.open(slot, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(HEADER_BYTES);
+            buffer.putLong(journalOffset);
+            buffer.putInt(rooms.size());
+            int[] next = {0};
+            for (RoomImage room : rooms) {
+                encode(buffer, room, strings, next);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(HEADER_BYTES).limit(size));
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, ++generation);
+            buffer.putInt(16, size - HEADER_BYTES);
+            buffer.putInt(20, (int) crc.getValue());
+            buffer.force();
+        }
+        nextSlot = 1 - nextSlot;
+    }
+
+    // Returns the body of an intact slot, positioned after the header, or null
+    private static ByteBuffer mapBody(Path slot) throws IOException {
+        if (!Files.exists(slot)) return null;
+        try (FileChannel channel = FileChannel.open(slot, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            int length = buffer.getInt(16);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || length < 0 || length > fileSize - HEADER_BYTES) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(HEADER_BYTES).limit(HEADER_BYTES + length));
+            if ((int) crc.getValue() != buffer.getInt(20)) return null;
+            return buffer.position(HEADER_BYTES).limit(HEADER_BYTES + length);
+        }
+    }
+
+    // Byte size of a room; its strings are encoded once, in write order, into strings
+    private static int measure(RoomImage room, List<byte[]> strings) {
+        int size = string(room.code, strings) + 1 + 4 + 8 + 4;
+        for (FestivalServer.Question q : room.questions) {
+            size += 4 + string(q.text, strings) + 4 + 4 + string(q.explanation, strings) + 4;
+            for (String choice : q.choices) {
+                size += string(choice, strings);
+            }
+        }
+        size += 4;
+        for (int i = 0; i < room.playerIds.length; i++) {
+            size += string(room.playerIds[i], strings) + string(room.nicknames[i], strings) + 8 + 4;
+        }
+        size += 4;
+        for (AnswerColumn column : room.answers) {
+            size += 4 + 4 + column.choices.length * 5;
+        }
+        return size;
+    }
+
+    private static int string(String value, List<byte[]> strings) {
+        byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void encode(ByteBuffer out, RoomImage room, List<byte[]> strings, int[] next) {
+        putString(out, strings.get(next[0]++));
+        out.put((byte) room.state.ordinal());
+        out.putInt(room.currentQuestionIndex);
+        out.putLong(room.questionStartTime);
+
+        out.putInt(room.questions.size());
+        for (FestivalServer.Question q : room.questions) {
+            out.putInt(q.id);
+            putString(out, strings.get(next[0]++));
+            out.putInt(q.choices.length);
+            out.putInt(q.correctIndex);
+            putString(out, strings.get(next[0]++));
+            out.putInt(q.timeLimitSec);
+            for (int i = 0; i < q.choices.length; i++) {
+                putString(out, strings.get(next[0]++));
+            }
+        }
+
+        out.putInt(room.playerIds.length);
+        for (int i = 0; i < room.playerIds.length; i++) {
+            putString(out, strings.get(next[0]++));
+            putString(out, strings.get(next[0]++));
+            out.putLong(room.joinedAt[i]);
+            out.putInt(room.scores[i]);
+        }
+
+        out.putInt(room.answers.size());
+        for (AnswerColumn column : room.answers) {
+            out.putInt(column.questionId);
+            out.putInt(column.choiceCount);
+            out.put(column.choices);
+            out.asIntBuffer().put(column.latencies);
+            out.position(out.position() + column.latencies.length * 4);
+        }
+    }
+
+    private static Contents decode(ByteBuffer in) {
+        long journalOffset = in.getLong();
+        int roomCount = in.getInt();
+        List<RoomImage> rooms = new ArrayList<>(roomCount);
+        FestivalServer.QuizState[] states = FestivalServer.QuizState.values();
+        for (int r = 0; r < roomCount; r++) {
+            RoomImage room = new RoomImage();
+            room.code = getString(in);
+            room.state = states[in.get()];
+            room.currentQuestionIndex = in.getInt();
+            room.questionStartTime = in.getLong();
+
+            int questionCount = in.getInt();
+            List<FestivalServer.Question> questions = new ArrayList<>(questionCount);
+            for (int i = 0; i < questionCount; i++) {
+                int id = in.getInt();
+                String text = getString(in);
+                String[] choices = new String[in.getInt()];
+                int correctIndex = in.getInt();
+                String explanation = getString(in);
+                int timeLimitSec = in.getInt();
+                for (int c = 0; c < choices.length; c++) {
+                    choices[c] = getString(in);
+                }
+                questions.add(new FestivalServer.Question(id, text, choices, correctIndex, explanation, timeLimitSec));
+            }
+            room.questions = List.copyOf(questions);
+
+            int playerCount = in.getInt();
+            room.playerIds = new String[playerCount];
+            room.nicknames = new String[playerCount];
+            room.joinedAt = new long[playerCount];
+            room.scores = new int[playerCount];
+            for (int i = 0; i < playerCount; i++) {
+                room.playerIds[i] = getString(in);
+                room.nicknames[i] = getString(in);
+                room.joinedAt[i] = in.getLong();
+                room.scores[i] = in.getInt();
+            }
+
+            int columnCount = in.getInt();
+            for (int i = 0; i < columnCount; i++) {
+                int questionId = in.getInt();
+                int choiceCount = in.getInt();
+                byte[] choices = new byte[playerCount];
+                int[] latencies = new int[playerCount];
+                in.get(choices);
+                in.asIntBuffer().get(latencies);
+                in.position(in.position() + playerCount * 4);
+                room.answers.add(new AnswerColumn(questionId, choiceCount, choices, latencies));
+            }
+            rooms.add(room);
+        }
+        return new Contents(journalOffset, rooms);
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,246 @@
+package jp.ac.u_aizu.quizapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the files under one directory from memory, for both servers. A file is read once,
+ * on its first request, into an immutable Asset: the bytes, a gzip variant for text types
+ * and an ETag derived from the content. Concurrent first requests for the same file wait
+ * for a single read. With {@link #watch} running, a file that changes on disk is dropped
+ * and read again on its next request.
+ * <p>
+ * Responses carry the ETag of the variant sent (the gzip one ends in "-gz") and answer a
+ * matching If-None-Match with 304. A request with a version query (style.css?v=3) may be
+ * cached for a year, since a new version gets a new URL; anything else is revalidated on
+ * each use, so an edited page shows up on the next load.
+ */
+class StaticAssets implements HttpHandler {
+
+    private static final Map<String, String> MIME_TYPES = Map.of(
+            "html", "text/html",
+            "css", "text/css",
+            "js", "application/javascript",
+            "json", "application/json",
+            "png", "image/png",
+            "jpg", "image/jpeg",
+            "svg", "image/svg+xml"
+    );
+    private static final Set<String> TEXT_TYPES = Set.of("html", "css", "js", "json", "svg");
+    private static final int GZIP_MIN_SIZE = 512; // Smaller files are not worth compressing
+    private static final String VERSIONED_CACHE = "public, max-age=31536000, immutable";
+
+    private static final class Asset {
+        final byte[] bytes;
+        final byte[] gzipped; // Null if not worth sending compressed
+        final String contentType;
+        final String etag;
+        final String gzipEtag; // The compressed bytes are a different representation
+
+        Asset(byte[] bytes, String ext) {
+            this.bytes = bytes;
+            byte[] compressed = TEXT_TYPES.contains(ext) && bytes.length >= GZIP_MIN_SIZE ? gzip(bytes) : null;
+            this.gzipped = compressed != null && compressed.length < bytes.length ? compressed : null;
+            String mime = MIME_TYPES.getOrDefault(ext, "application/octet-stream");
+            this.contentType = TEXT_TYPES.contains(ext) ? mime + ";charset=UTF-8" : mime;
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            this.etag = "\"s" + Long.toHexString(crc.getValue()) + "-" + bytes.length + "\"";
+            this.gzipEtag = gzipEtag(etag);
+        }
+    }
+
+    private final Path root;
+    private final String index;
+    // Keyed by path relative to root; only files that exist are cached
+    private final Map<String, Asset> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @param index the file served for a directory path such as "/"
+     */
+    StaticAssets(Path root, String index) {
+        this.root = root.toAbsolutePath().normalize();
+        this.index = index;
+    }
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            ex.sendResponseHeaders(405, -1);
+            ex.close();
+            return;
+        }
+
+        String path = ex.getRequestURI().getPath();
+        if (path.endsWith("/")) path += index;
+        Asset asset = lookup(path);
+        if (asset == null) {
+            ex.sendResponseHeaders(404, -1);
+            ex.close();
+            return;
+        }
+
+        String query = ex.getRequestURI().getRawQuery();
+        boolean versioned = query != null && (query.startsWith("v=") || query.contains("&v="));
+        boolean gzip = asset.gzipped != null && acceptsGzip(ex);
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+        ex.getResponseHeaders().set("Content-Type", asset.contentType);
+        ex.getResponseHeaders().set("ETag", etag);
+        ex.getResponseHeaders().set("Cache-Control", versioned ? VERSIONED_CACHE : "no-cache");
+        if (asset.gzipped != null) ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (notModified(ex, etag)) {
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+
+        byte[] body = asset.bytes;
+        if (gzip) {
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+            body = asset.gzipped;
+        }
+        if ("HEAD".equals(method)) {
+            // The JDK server wants -1 for HEAD and keeps a Content-Length set here
+            ex.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+            ex.sendResponseHeaders(200, -1);
+            ex.close();
+            return;
+        }
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Drops changed files from the cache as the directory tree changes on disk.
+     */
+    void watch(String threadName) {
+        WatchService watcher;
+        Map<WatchKey, Path> dirs = new HashMap<>();
+        try (Stream<Path> tree = Files.walk(root)) {
+            watcher = FileSystems.getDefault().newWatchService();
+            for (Path dir : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator) {
+                dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+            }
+        } catch (IOException e) {
+            System.err.println("Not watching " + root + ": " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    Path dir = dirs.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                            cache.clear();
+                        } else {
+                            // Waits for a read of the same file in progress, so no stale copy survives
+                            cache.remove(root.relativize(dir.resolve((Path) event.context())).toString());
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException e) {
+                // Shutting down
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The cached asset for a request path, reading it on first use; null if there is no such file
+    private Asset lookup(String path) throws IOException {
+        Path file = root.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(root)) return null; // "/../" must not escape the directory
+        try {
+            return cache.computeIfAbsent(root.relativize(file).toString(), name -> {
+                if (!Files.isRegularFile(file)) return null;
+                try {
+                    String fileName = file.getFileName().toString();
+                    return new Asset(Files.readAllBytes(file), fileName.substring(fileName.lastIndexOf('.') + 1));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean notModified(HttpExchange ex, String etag) {
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        return ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"));
+    }
+
+    /**
+     * Whether Accept-Encoding allows gzip: listed, or covered by "*", with a q-value above 0.
+     * "gzip;q=0" refuses it.
+     */
+    static boolean acceptsGzip(HttpExchange ex) {
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept == null) return false;
+        float any = 0;
+        for (String coding : accept.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+            float q = semicolon < 0 ? 1 : qValue(coding.substring(semicolon + 1));
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) return q > 0;
+            if (name.equals("*")) any = q;
+        }
+        return any > 0;
+    }
+
+    // The q parameter of a coding's parameters; 1 if absent, 0 if unreadable
+    private static float qValue(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    // The ETag of a gzip-encoded response, from the identity one
+    static String gzipEtag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gz\"";
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // In-memory streams do not fail
+        }
+        return out.toByteArray();
+    }
+}
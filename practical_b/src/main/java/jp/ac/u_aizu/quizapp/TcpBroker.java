@@ -0,0 +1,78 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stand-in message broker for running several FestivalServer nodes on one machine:
+ * java jp.ac.u_aizu.quizapp.TcpBroker [port]
+ * <p>
+ * Nodes send "topic\tmessage" lines; the broker relays every line to every connected node,
+ * the sender included, under one lock, so all nodes see one order. There is no
+ * persistence, filtering or flow control: a node that stops reading stalls the broker.
+ */
+class TcpBroker {
+
+    static final int DEFAULT_PORT = 7070;
+
+    private final List<Writer> nodes = new CopyOnWriteArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        new TcpBroker().serve(port);
+    }
+
+    void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Broker listening on port " + port);
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> relay(socket), "broker-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+    }
+
+    private void relay(Socket socket) {
+        Writer out = null;
+        try (socket) {
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            nodes.add(out);
+            System.out.println("Node connected: " + socket.getRemoteSocketAddress());
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                broadcast(line);
+            }
+        } catch (IOException e) {
+            // Node went away
+        } finally {
+            if (out != null) nodes.remove(out);
+            System.out.println("Node disconnected: " + socket.getRemoteSocketAddress());
+        }
+    }
+
+    private synchronized void broadcast(String line) {
+        for (Writer node : nodes) {
+            try {
+                node.write(line);
+                node.write('\n');
+                node.flush();
+            } catch (IOException e) {
+                nodes.remove(node);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Message bus client for a {@link TcpBroker}. Messages, including this node's own, come
+ * back from the broker and are delivered on one reader thread in broker order.
+ * Publishing only queues the message for a writer thread, so a slow broker never blocks
+ * the publisher, which is often the WebSocket I/O loop.
+ */
+class TcpBus implements MessageBus {
+
+    private final Socket socket;
+    private final Writer out;
+    private final BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Map<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
+
+    TcpBus(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        Thread reader = new Thread(this::read, "festival-bus");
+        reader.setDaemon(true);
+        reader.start();
+
+        writer = new Thread(this::write, "festival-bus-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(String topic, String message) {
+        if (message.indexOf('\n') >= 0 || topic.indexOf('\t') >= 0) {
+            throw new IllegalArgumentException("Messages must be single lines");
+        }
+        outbox.add(topic + '\t' + message);
+    }
+
+    @Override
+    public void subscribe(String topic, Consumer<String> handler) {
+        subscribers.computeIfAbsent(topic, t -> new CopyOnWriteArrayList<>()).add(handler);
+    }
+
+    @Override
+    public void close() {
+        writer.interrupt();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                String line = outbox.take();
+                try {
+                    // Whatever queued up meanwhile goes out with one flush
+                    do {
+                        out.write(line);
+                        out.write('\n');
+                    } while ((line = outbox.poll()) != null);
+                    out.flush();
+                } catch (IOException e) {
+                    // Unanswered commands time out on the caller's side
+                    System.err.println("Bus publish failed: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void read() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) continue;
+                for (Consumer<String> handler : subscribers.getOrDefault(line.substring(0, tab), List.of())) {
+                    try {
+                        handler.accept(line.substring(tab + 1));
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+        System.err.println("Bus connection to broker lost");
+    }
+}
@@ -1,7 +1,6 @@
 package jp.ac.u_aizu.quizapp;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.BufferedReader;
@@ -17,10 +16,10 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ThemeController {
 
@@ -28,17 +27,21 @@ public class ThemeController {
     private static final String OPENAI_API_KEY = loadApiKey();
 
     private static final int PORT = 8080;
-    private static String currentTheme = "未設定";
+    private static volatile String currentTheme = "未設定";
 
     // 展示品データリスト
     private static List<Exhibit> allExhibits = new ArrayList<>();
 
-    // 投稿されたクイズを保存するリスト
-    private static List<String> postedQuizzes = new ArrayList<>();
+    // 投稿されたクイズを保存するリスト（ハンドラが並行に動くのでスレッドセーフなリスト）
+    private static final List<String> postedQuizzes = new CopyOnWriteArrayList<>();
+
+    // 投稿クイズの保存先。FestivalServer がこのファイルを監視しているので、投稿は再起動なしで問題バンクに反映される
+    private static final Path QUIZ_FILE = Paths.get("src/main/resources/data/quizzes.json");
 
     public static void main(String[] args) throws IOException {
         // ★変更点：CSVではなくJSONデータを読み込むメソッドを呼び出し
         loadJsonData();
+        loadPostedQuizzes();
 
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
         System.out.println("Server started: http://localhost:" + PORT);
@@ -50,17 +53,23 @@ public class ThemeController {
             System.err.println("【警告】APIキーが読み込めませんでした。.envを確認してください。");
         }
 
-        // 1. 静的ファイル
-        server.createContext("/", new StaticFileHandler("index.html"));
+        // 同時実行数の上限（エンドポイントごと）。超えた分は待たせ続けず 429/503 と Retry-After で断る。
+        // 安いAPI（テーマ取得）を優先し、混雑時は重いAI生成から先に断る
+        AdmissionControl admission = AdmissionControl.fromSystemProperties();
+
+        // 1. 静的ファイル（初回に読み込んでメモリから配信。ファイルを編集すると読み直す）
+        StaticAssets assets = new StaticAssets(Paths.get("src/main/resources/static"), "index.html");
+        assets.watch("theme-static-watcher");
+        server.createContext("/", admission.limit("static", AdmissionControl.Priority.NORMAL, 64, assets));
 
         // 2. テーマ取得
-        server.createContext("/api/theme/current", ex -> {
+        server.createContext("/api/theme/current", admission.limit("themeCurrent", AdmissionControl.Priority.HIGH, 64, ex -> {
             if ("GET".equals(ex.getRequestMethod())) sendResponse(ex, 200, currentTheme);
             else sendResponse(ex, 405, "Method Not Allowed");
-        });
+        }));
 
         // 3. テーマ更新
-        server.createContext("/api/theme/save", ex -> {
+        server.createContext("/api/theme/save", admission.limit("themeSave", AdmissionControl.Priority.HIGH, 4, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
                 String newTheme = readRequestBody(ex);
                 if (newTheme != null && !newTheme.isEmpty()) {
@@ -68,10 +77,10 @@ public class ThemeController {
                     sendResponse(ex, 200, "OK");
                 } else sendResponse(ex, 400, "Bad Request");
             } else sendResponse(ex, 405, "Method Not Allowed");
-        });
+        }));
 
         // 4. 展示品検索
-        server.createContext("/api/tools/search", ex -> {
+        server.createContext("/api/tools/search", admission.limit("search", AdmissionControl.Priority.NORMAL, 16, ex -> {
             if ("GET".equals(ex.getRequestMethod())) {
                 String query = ex.getRequestURI().getQuery();
                 String era = query != null && query.contains("era=") ? query.split("era=")[1].split("&")[0] : "";
@@ -79,10 +88,10 @@ public class ThemeController {
                 List<Exhibit> filtered = searchExhibits(currentTheme, era);
                 sendResponse(ex, 200, convertToJson(filtered));
             } else sendResponse(ex, 405, "Method Not Allowed");
-        });
+        }));
 
         // 5. AIクイズ生成
-        server.createContext("/api/quiz/generate", ex -> {
+        server.createContext("/api/quiz/generate", admission.limit("generate", AdmissionControl.Priority.LOW, 4, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
                 String toolName = readRequestBody(ex);
                 try {
@@ -93,32 +102,147 @@ public class ThemeController {
                     sendResponse(ex, 500, "AI Error");
                 }
             } else sendResponse(ex, 405, "Method Not Allowed");
-        });
+        }));
 
         // 6. クイズ投稿（保存）機能
-        server.createContext("/api/quiz/post", ex -> {
+        server.createContext("/api/quiz/post", admission.limit("post", AdmissionControl.Priority.NORMAL, 8, ex -> {
             if ("POST".equals(ex.getRequestMethod())) {
-                String quizJson = readRequestBody(ex);
-                postedQuizzes.add(quizJson);
+                String quizJson = readRequestBody(ex).trim();
+                // 壊れた1件が quizzes.json 全体を読めなくしないよう、問題として読めるものだけ受け付ける
+                String error = validateQuiz(quizJson);
+                if (error != null) {
+                    sendResponse(ex, 400, "{\"error\":\"" + error + "\"}");
+                    return;
+                }
+                try {
+                    addQuiz(quizJson);
+                } catch (IOException e) {
+                    System.err.println("クイズの保存に失敗しました: " + e.getMessage());
+                    sendResponse(ex, 500, "保存に失敗しました");
+                    return;
+                }
                 System.out.println("クイズが投稿されました。現在件数: " + postedQuizzes.size());
                 sendResponse(ex, 200, "OK");
             } else sendResponse(ex, 405, "Method Not Allowed");
-        });
+        }));
 
         // 7. 投稿一覧取得
-        server.createContext("/api/quiz/list", ex -> {
+        server.createContext("/api/quiz/list", admission.limit("list", AdmissionControl.Priority.NORMAL, 32, ex -> {
             if ("GET".equals(ex.getRequestMethod())) {
                 String jsonList = "[" + String.join(",", postedQuizzes) + "]";
                 sendResponse(ex, 200, jsonList);
             } else sendResponse(ex, 405, "Method Not Allowed");
+        }));
+
+        // 8. 受付制御の状況（断った件数など）。混雑時にも答えられるよう上限はかけない
+        server.createContext("/api/server/stats", ex -> {
+            if ("GET".equals(ex.getRequestMethod())) sendResponse(ex, 200, "{\"admission\":" + admission.toJson() + "}");
+            else sendResponse(ex, 405, "Method Not Allowed");
         });
 
-        server.setExecutor(null);
+        // ハンドラの実行方式（-Dfestival.exec=virtual|platform）
+        // 以前は setExecutor(null) で全リクエストが1スレッドに直列化され、callOpenAI の待ちで他のAPIも止まっていた
+        ExecutionMode mode = ExecutionMode.fromSystemProperties();
+        server.setExecutor(mode.newExecutor("theme-http"));
+        System.out.println("ハンドラ実行方式: " + mode.name().toLowerCase());
         server.start();
     }
 
     // --- ロジック ---
 
+    // 前回までに投稿されたクイズを読み込む（配列の要素を1件ずつ元のJSONのまま取り出す）。問題として読めない要素は飛ばす
+    private static void loadPostedQuizzes() {
+        if (!Files.exists(QUIZ_FILE)) return;
+        try {
+            Json.Reader reader = new Json.Reader(Files.readString(QUIZ_FILE, StandardCharsets.UTF_8));
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String quizJson = reader.nextRaw();
+                String error = validateQuiz(quizJson);
+                if (error == null) postedQuizzes.add(quizJson);
+                else System.err.println("投稿クイズを1件読み飛ばしました（" + error + "）: " + quizJson);
+            }
+            reader.endArray();
+        } catch (IOException | IllegalArgumentException e) {
+            // 途中までしか読めなかった。次の投稿で上書きされて残りが消えないよう、元のファイルを退避しておく
+            System.err.println("投稿クイズの読み込みに失敗しました: " + e.getMessage());
+            try {
+                Path backup = QUIZ_FILE.resolveSibling(QUIZ_FILE.getFileName() + ".broken");
+                Files.copy(QUIZ_FILE, backup, StandardCopyOption.REPLACE_EXISTING);
+                System.err.println("元のファイルを " + backup + " に退避しました");
+            } catch (IOException copyError) {
+                System.err.println("退避に失敗しました: " + copyError.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 投稿クイズ1件が FestivalServer の問題として読めるか確かめる。
+     * 必須: 問題文（question または text）、2つ以上の選択肢の配列、選択肢のどれかと一致する answer。
+     *
+     * @return 問題なければ null、そうでなければ理由
+     */
+    private static String validateQuiz(String quizJson) {
+        String text = null;
+        List<String> choices = null;
+        String answer = null;
+        try {
+            Json.Reader reader = new Json.Reader(quizJson);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "question":
+                    case "text":
+                        text = reader.nextString();
+                        break;
+                    case "choices":
+                        choices = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            choices.add(reader.nextString());
+                        }
+                        reader.endArray();
+                        break;
+                    case "answer":
+                        answer = reader.nextString();
+                        break;
+                    case "explanation":
+                        if (reader.peek() == Json.Token.NULL) reader.skipValue();
+                        else reader.nextString();
+                        break;
+                    case "timeLimit":
+                        reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            reader.endDocument();
+        } catch (IllegalArgumentException e) {
+            return "Malformed quiz JSON";
+        }
+        if (text == null || text.isBlank()) return "Missing question";
+        if (choices == null || choices.size() < 2) return "At least two choices are required";
+        if (answer == null || !choices.contains(answer)) return "Answer must be one of the choices";
+        return null;
+    }
+
+    // 投稿を1件足す。ファイルへの保存に成功してから一覧に加えるので、保存に失敗した投稿が一覧にだけ残ることはない
+    private static synchronized void addQuiz(String quizJson) throws IOException {
+        List<String> next = new ArrayList<>(postedQuizzes);
+        next.add(quizJson);
+        saveQuizFile(next);
+        postedQuizzes.add(quizJson);
+    }
+
+    // 投稿クイズ全体を書き出す。一時ファイルに書いてから置き換えるので、読む側が書きかけのファイルを見ることはない
+    private static void saveQuizFile(List<String> quizzes) throws IOException {
+        Path tmp = QUIZ_FILE.resolveSibling(QUIZ_FILE.getFileName() + ".tmp");
+        Files.writeString(tmp, "[" + String.join(",", quizzes) + "]", StandardCharsets.UTF_8);
+        Files.move(tmp, QUIZ_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     // ★追加：JSONデータを読み込むメソッド
     private static void loadJsonData() {
         // 画像にあるパスを指定: src/main/resources/data/data_updated.json
@@ -133,20 +257,17 @@ public class ThemeController {
             // ファイルの中身をすべて読み込む
             String jsonContent = Files.readString(path, StandardCharsets.UTF_8);
 
-            // 簡易的なJSONパース処理（ライブラリなしで実装）
-            // 配列の中のオブジェクト {...} を一つずつ探す
-            Pattern pattern = Pattern.compile("\\{([^{}]*)\\}");
-            Matcher matcher = pattern.matcher(jsonContent);
-
-            while (matcher.find()) {
-                String itemJson = matcher.group(1); // 1つの展示品データ
-
-                // 各フィールドを取り出す
-                String id = extractJsonValue(itemJson, "id");
-                String name = extractJsonValue(itemJson, "name");
-                String era = extractJsonValue(itemJson, "era");
-                String theme = extractJsonValue(itemJson, "theme");
-                String description = extractJsonValue(itemJson, "description");
+            // 配列の中のオブジェクトを先頭から一度だけ読む（Json.Reader）
+            Json.Reader reader = new Json.Reader(jsonContent);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                // 1つの展示品データ
+                Map<String, String> item = reader.nextFields();
+                String id = item.get("id");
+                String name = item.get("name");
+                String era = item.get("era");
+                String theme = item.get("theme");
+                String description = item.get("description");
 
                 // リストに追加
                 if (name != null && !name.isEmpty()) {
@@ -159,28 +280,14 @@ public class ThemeController {
                     ));
                 }
             }
+            reader.endArray();
             System.out.println("展示品データ(JSON)読み込み完了: " + allExhibits.size() + "件");
 
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             e.printStackTrace();
         }
     }
 
-    // JSONから特定キーの値を取り出すヘルパー関数
-    private static String extractJsonValue(String json, String key) {
-        // "key": "value" のパターンを探す（改行やエスケープにもある程度対応）
-        String regex = "\"" + key + "\"\\s*:\\s*\"(.*?)(?<!\\\\)\"";
-        Pattern p = Pattern.compile(regex, Pattern.DOTALL);
-        Matcher m = p.matcher(json);
-        if (m.find()) {
-            return m.group(1)
-                    .replace("\\\"", "\"")
-                    .replace("\\n", "\n")
-                    .replace("\\\\", "\\");
-        }
-        return null;
-    }
-
     private static List<Exhibit> searchExhibits(String theme, String era) {
         return allExhibits.stream()
                 .filter(e -> e.era.equals(era))
@@ -188,17 +295,16 @@ public class ThemeController {
                 .collect(Collectors.toList());
     }
 
-    private static String convertToJson(List<Exhibit> list) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < list.size(); i++) {
-            Exhibit e = list.get(i);
-            sb.append(String.format("{\"name\":\"%s\",\"description\":\"%s\"}",
-                    e.name.replace("\"", "\\\""),
-                    e.description.replace("\n", "").replace("\"", "\\\"")));
-            if (i < list.size() - 1) sb.append(",");
+    // UTF-8 のバイト列に直接書き出す（文字列を組み立ててから変換し直さない）
+    private static Json.Writer convertToJson(List<Exhibit> list) {
+        Json.Writer json = new Json.Writer().beginArray();
+        for (Exhibit e : list) {
+            json.beginObject()
+                .field("name", e.name)
+                .field("description", e.description.replace("\n", ""))
+                .endObject();
         }
-        sb.append("]");
-        return sb.toString();
+        return json.endArray();
     }
 
     // --- AI通信 ---
@@ -206,31 +312,31 @@ public class ThemeController {
         if (OPENAI_API_KEY == null) throw new IllegalStateException("API Key is not set");
 
         String prompt = String.format("テーマ:%s,題材:%s,ターゲット:一般観光客。クイズを1問作成しJSON(question,choices,answer,explanation)のみ返してください。", theme, toolName);
-        String jsonBody = "{\"model\":\"gpt-3.5-turbo\",\"messages\":[{\"role\":\"system\",\"content\":\"Output JSON only.\"},{\"role\":\"user\",\"content\":\"" + escapeJson(prompt) + "\"}]}";
+        Json.Writer jsonBody = new Json.Writer().beginObject()
+                .field("model", "gpt-3.5-turbo")
+                .name("messages").beginArray()
+                .beginObject().field("role", "system").field("content", "Output JSON only.").endObject()
+                .beginObject().field("role", "user").field("content", prompt).endObject()
+                .endArray().endObject();
         HttpClient client = HttpClient.newHttpClient();
         HttpRequest request = HttpRequest.newBuilder().uri(URI.create("https://api.openai.com/v1/chat/completions"))
                 .header("Content-Type", "application/json").header("Authorization", "Bearer " + OPENAI_API_KEY)
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody, StandardCharsets.UTF_8)).build();
+                .POST(HttpRequest.BodyPublishers.ofByteArray(jsonBody.toByteArray())).build();
         HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
         return parseContentFromRawJson(response.body());
     }
 
-    private static String escapeJson(String i) { return i.replace("\"", "\\\"").replace("\n", "\\n"); }
+    // レスポンスの choices[0].message.content を取り出す
     private static String parseContentFromRawJson(String rawJson) {
         try {
-            String marker = "\"content\": \"";
-            int start = rawJson.indexOf(marker);
-            if (start == -1) return "{}";
-            start += marker.length();
-            int end = start;
-            while (true) {
-                end = rawJson.indexOf("\"", end);
-                if (end == -1) break;
-                if (rawJson.charAt(end - 1) != '\\') break;
-                end++;
-            }
-            return rawJson.substring(start, end).replace("\\n", "\n").replace("\\r", "").replace("\\t", " ").replace("\\\"", "\"").replace("\\\\", "\\");
-        } catch (Exception e) { return "{}"; }
+            String choices = Json.fields(rawJson).get("choices");
+            if (choices == null) return "{}";
+            Json.Reader reader = new Json.Reader(choices);
+            reader.beginArray();
+            if (!reader.hasNext()) return "{}";
+            String content = Json.fields(Json.fields(reader.nextRaw()).get("message")).get("content");
+            return content == null ? "{}" : content;
+        } catch (IllegalArgumentException e) { return "{}"; }
     }
 
     // .env読み込み用メソッド
@@ -259,13 +365,7 @@ public class ThemeController {
         String id, name, era, theme, description;
         public Exhibit(String i, String n, String e, String t, String d) { id=i; name=n; era=e; theme=t; description=d; }
     }
-    static class StaticFileHandler implements HttpHandler {
-        private final String f; public StaticFileHandler(String f) { this.f = f; }
-        public void handle(HttpExchange e) throws IOException {
-            Path p = Paths.get("src/main/resources/static", f);
-            if(Files.exists(p)){ byte[] b=Files.readAllBytes(p); e.sendResponseHeaders(200, b.length); try(OutputStream o=e.getResponseBody()){o.write(b);} } else { e.sendResponseHeaders(404,0); e.close(); }
-        }
-    }
     private static void sendResponse(HttpExchange e, int s, String r) throws IOException { byte[] b=r.getBytes(StandardCharsets.UTF_8); e.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8"); e.sendResponseHeaders(s, b.length); try(OutputStream o=e.getResponseBody()){o.write(b);} }
+    private static void sendResponse(HttpExchange e, int s, Json.Writer w) throws IOException { e.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8"); e.sendResponseHeaders(s, w.size()); try(OutputStream o=e.getResponseBody()){w.writeTo(o);} }
     private static String readRequestBody(HttpExchange e) throws IOException { InputStream i=e.getRequestBody(); Scanner s=new Scanner(i, StandardCharsets.UTF_8.name()); return s.useDelimiter("\\A").hasNext()?s.next():""; }
 }
\ No newline at end of file
@@ -0,0 +1,1194 @@
+package jp.ac.u_aizu.quizapp;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Non-blocking WebSocket engine for the festival server.
+ * A small fixed set of selector loops performs the upgrade handshake, frame decoding
+ * and outbound writes for every connection instead of parking one thread per socket.
+ * Outbound frames go through a bounded per-connection queue that the owning loop drains,
+ * so a stalled client is evicted instead of holding up everyone else.
+ * RFC 7692 permessage-deflate is negotiated during the handshake when the client offers it,
+ * as is a subprotocol (Sec-WebSocket-Protocol) from {@link Config#subprotocols}.
+ * Frames are decoded per RFC 6455 (fragmentation, ping/pong, close handshake), and a
+ * server-driven heartbeat evicts connections that stop answering.
+ * Plain HTTP requests on the same port are routed to HttpHandlers registered with
+ * {@link #createContext}, so one listener serves both the API and the upgrade path.
+ */
+class WebSocketEngine {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HANDSHAKE_SIZE = 8 * 1024;
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int MAX_REQUEST_BODY = 1024 * 1024;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    private static final byte[] DEFLATE_TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+    // Opcodes
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    // Close status codes
+    static final int CLOSE_NORMAL = 1000;
+    static final int CLOSE_GOING_AWAY = 1001;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_INVALID_PAYLOAD = 1007;
+    static final int CLOSE_POLICY_VIOLATION = 1008;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    private static final Frame PING = new Frame(OP_PING, new byte[0]);
+
+    // Used for frames compressed without context takeover, which are independent of any connection
+    private static final ThreadLocal<Deflater> SHARED_DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    /**
+     * Engine settings. Defaults can be overridden with festival.ws.* system properties.
+     */
+    static class Config {
+        int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        int maxQueueDepth = 256;       // Frames a connection may have pending before it is evicted
+        long writeDeadlineMs = 5000;   // How long a connection may make no write progress before it is evicted
+        boolean deflate = true;        // Accept permessage-deflate offers
+        boolean deflateContextTakeover = false; // Keep the LZ77 window between messages (disables shared compression)
+        int deflateMinSize = 256;      // Payloads smaller than this are always sent uncompressed
+        long pingIntervalMs = 15000;   // Idle time after which the server sends a ping
+        long heartbeatTimeoutMs = 10000; // Time allowed for a pong, handshake or close reply before eviction
+        String path = "/ws";           // Request path that is upgraded to a WebSocket
+        List<String> subprotocols = List.of(); // Sec-WebSocket-Protocol values the application speaks
+
+        static Config fromSystemProperties() {
+            Config c = new Config();
+            c.ioThreads = Integer.getInteger("festival.ws.ioThreads", c.ioThreads);
+            c.maxQueueDepth = Integer.getInteger("festival.ws.maxQueue", c.maxQueueDepth);
+            c.writeDeadlineMs = Long.getLong("festival.ws.writeDeadlineMs", c.writeDeadlineMs);
+            c.deflate = Boolean.parseBoolean(System.getProperty("festival.ws.deflate", String.valueOf(c.deflate)));
+            c.deflateContextTakeover = Boolean.getBoolean("festival.ws.deflate.contextTakeover");
+            c.deflateMinSize = Integer.getInteger("festival.ws.deflate.minSize", c.deflateMinSize);
+            c.pingIntervalMs = Long.getLong("festival.ws.pingIntervalMs", c.pingIntervalMs);
+            c.heartbeatTimeoutMs = Long.getLong("festival.ws.heartbeatTimeoutMs", c.heartbeatTimeoutMs);
+            c.path = System.getProperty("festival.ws.path", c.path);
+            return c;
+        }
+    }
+
+    interface Listener {
+        void onOpen(Connection conn);
+
+        void onMessage(Connection conn, String message);
+
+        void onClose(Connection conn);
+    }
+
+    private final int port;
+    private final Config config;
+    private final int maxQueueDepth;
+    private final long writeDeadlineNanos;
+    private final long pingIntervalNanos;
+    private final long heartbeatTimeoutNanos;
+    private final Listener listener;
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger socketCount = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    // HTTP contexts served on the same port, matched by longest path prefix
+    private final Map<String, NioHttpExchange.Context> contexts = new ConcurrentHashMap<>();
+    private volatile Executor executor;
+    private final LongAdder httpRequests = new LongAdder();
+    private final LongAdder httpRejected = new LongAdder(); // Refused because the handler executor was full
+
+    // Outbound queue metrics
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder droppedQueueFull = new LongAdder();
+    private final LongAdder droppedDeadline = new LongAdder();
+    private final LongAdder droppedHeartbeat = new LongAdder();
+
+    WebSocketEngine(int port, Config config, Listener listener) throws IOException {
+        this.port = port;
+        this.config = config;
+        this.maxQueueDepth = Math.max(1, config.maxQueueDepth);
+        this.writeDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(config.writeDeadlineMs);
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.pingIntervalMs);
+        this.heartbeatTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.heartbeatTimeoutMs);
+        this.listener = listener;
+        this.loops = new IoLoop[Math.max(1, config.ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        // The first loop also accepts; new sockets are spread round-robin over all loops
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Registers an HTTP handler for a path prefix, with the same matching rules as HttpServer.
+     */
+    HttpContext createContext(String path, HttpHandler handler) {
+        NioHttpExchange.Context context = new NioHttpExchange.Context(path, handler);
+        contexts.put(path, context);
+        return context;
+    }
+
+    /**
+     * Sets the executor that runs HTTP handlers. Without one, handlers run on the I/O loop,
+     * like HttpServer with a null executor.
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private NioHttpExchange.Context findContext(String path) {
+        NioHttpExchange.Context best = null;
+        for (NioHttpExchange.Context context : contexts.values()) {
+            if (path.startsWith(context.getPath())
+                    && (best == null || context.getPath().length() > best.getPath().length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    void stop() {
+        for (IoLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    int getConnectionCount() {
+        return openConnections.get();
+    }
+
+    int getSocketCount() {
+        return socketCount.get();
+    }
+
+    long getHttpRequests() {
+        return httpRequests.sum();
+    }
+
+    long getHttpRejected() {
+        return httpRejected.sum();
+    }
+
+    int getIoThreadCount() {
+        return loops.length;
+    }
+
+    int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    long getDroppedQueueFull() {
+        return droppedQueueFull.sum();
+    }
+
+    long getDroppedDeadline() {
+        return droppedDeadline.sum();
+    }
+
+    long getDroppedHeartbeat() {
+        return droppedHeartbeat.sum();
+    }
+
+    // ========================
+    // Frame Encoding
+    // ========================
+
+    /**
+     * An encoded message that can be handed to any number of connections. The raw frame is
+     * built once; the compressed variant is built at most once, the first time a
+     * permessage-deflate connection without context takeover needs it.
+     */
+    static final class Frame {
+        private final int opcode;
+        private final byte[] payload;
+        private final ByteBuffer raw;
+        private volatile ByteBuffer deflated;
+
+        private Frame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+            this.raw = encodeFrame(0x80 | opcode, payload); // FIN bit set
+        }
+
+        private ByteBuffer deflated() {
+            ByteBuffer result = deflated;
+            if (result == null) {
+                synchronized (this) {
+                    result = deflated;
+                    if (result == null) {
+                        byte[] compressed = deflate(SHARED_DEFLATER.get(), payload, true);
+                        // Keep the raw frame if compression does not actually help
+                        result = compressed.length < payload.length ? encodeFrame(0xC0 | opcode, compressed) : raw;
+                        deflated = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Builds the compressed variant now instead of on the first send, for frames that are
+         * prepared ahead of a fan-out.
+         */
+        Frame precompress() {
+            deflated();
+            return this;
+        }
+
+        // The message itself, unframed; shared, so never modified
+        byte[] payload() {
+            return payload;
+        }
+
+        // Bytes on the wire, header included, as sent with or without permessage-deflate
+        int wireLength(boolean deflate) {
+            return (deflate ? deflated() : raw).limit();
+        }
+    }
+
+    static Frame textFrame(String message) {
+        return new Frame(OP_TEXT, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Frame binaryFrame(byte[] payload) {
+        return new Frame(OP_BINARY, payload);
+    }
+
+    private static Frame closeFrame(int status, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + Math.min(text.length, 123)];
+        payload[0] = (byte) (status >> 8);
+        payload[1] = (byte) status;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        return new Frame(OP_CLOSE, payload);
+    }
+
+    private static ByteBuffer encodeFrame(int firstByte, byte[] payload) {
+        int headerLength = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(headerLength + payload.length);
+
+        frame.put((byte) firstByte);
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        } else if (payload.length < 65536) {
+            frame.put((byte) 126);
+            frame.putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(payload.length);
+        }
+        frame.put(payload);
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    // Raw DEFLATE ending in a sync flush, with the trailing 00 00 FF FF removed (RFC 7692 7.2.1)
+    private static byte[] deflate(Deflater deflater, byte[] payload, boolean reset) {
+        deflater.setInput(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+        byte[] buf = new byte[4096];
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, n);
+        } while (n == buf.length);
+        if (reset) deflater.reset();
+
+        byte[] compressed = out.toByteArray();
+        int length = compressed.length;
+        if (length >= 4 && compressed[length - 4] == 0 && compressed[length - 3] == 0
+                && compressed[length - 2] == (byte) 0xFF && compressed[length - 1] == (byte) 0xFF) {
+            length -= 4;
+        }
+        return length == compressed.length ? compressed : Arrays.copyOf(compressed, length);
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] payload) throws DataFormatException {
+        byte[] input = Arrays.copyOf(payload, payload.length + DEFLATE_TAIL.length);
+        System.arraycopy(DEFLATE_TAIL, 0, input, payload.length, DEFLATE_TAIL.length);
+        inflater.setInput(input);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 2 + 16);
+        byte[] buf = new byte[4096];
+        int n;
+        do {
+            n = inflater.inflate(buf);
+            out.write(buf, 0, n);
+            if (out.size() > MAX_FRAME_SIZE) throw new DataFormatException("Message too large");
+        } while (n > 0 || !(inflater.needsInput() || inflater.finished()));
+        return out.toByteArray();
+    }
+
+    private static String calculateWebSocketAccept(String key) throws Exception {
+        String magic = key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] hash = md.digest(magic.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    // ========================
+    // I/O Loop
+    // ========================
+
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final Inflater inflater = new Inflater(true); // For clients without context takeover, reset per message
+        final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        volatile boolean running = true;
+        long lastSweep = System.nanoTime();
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            // Not a daemon: the loops keep the server process alive, as HttpServer's dispatcher did
+            this.thread = new Thread(this, "ws-io-" + index);
+        }
+
+        void adopt(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection conn) {
+            pendingWrites.add(conn);
+            selector.wakeup();
+        }
+
+        // Runs a task on this loop's thread, e.g. to hand back a finished HTTP response
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MS);
+                    registerPending();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) conn.onReadable(readBuffer);
+                            if (key.isValid() && key.isWritable()) conn.flush();
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close();
+                        } catch (RuntimeException e) {
+                            // A bug triggered by one request must cost that connection, not the loop
+                            e.printStackTrace();
+                            conn.close();
+                        }
+                    }
+                    sweep();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Shutting down
+            }
+        }
+
+        private void accept(ServerSocketChannel server) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].adopt(channel);
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                Connection conn = new Connection(channel, this);
+                socketCount.incrementAndGet();
+                try {
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    conn.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Connection conn;
+            while ((conn = pendingWrites.poll()) != null) {
+                if (conn.key == null || !conn.key.isValid()) continue;
+                try {
+                    conn.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    conn.close();
+                }
+            }
+        }
+
+        // Evicts slow consumers and runs the heartbeat, at most once per sweep interval
+        private void sweep() {
+            long now = System.nanoTime();
+            if (now - lastSweep < TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS)) return;
+            lastSweep = now;
+
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (!(attachment instanceof Connection)) continue;
+
+                Connection conn = (Connection) attachment;
+                if (conn.isStalled(now)) {
+                    droppedDeadline.increment();
+                    conn.close();
+                } else {
+                    conn.heartbeat(now);
+                }
+            }
+        }
+    }
+
+    // ========================
+    // Connection
+    // ========================
+
+    final class Connection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private long lastProgress; // nanoTime of the last write that moved any bytes while frames were pending
+        private SelectionKey key;
+        private ByteBuffer inbound; // Unconsumed bytes of a partial handshake or frame, null when empty
+        private volatile boolean open;
+        private boolean closed;
+        private volatile Object attachment;
+        private URI requestUri; // Of the upgrade request; set before onOpen
+        private String subprotocol; // Negotiated during the handshake; null if none
+
+        // Heartbeat and close handshake state, touched only by the loop thread except closeSent
+        private final long createdAt = System.nanoTime();
+        private long lastActivity = createdAt;
+        private long pingSentAt;   // 0 when no ping is outstanding
+        private volatile boolean closeSent;
+        private long closeSentAt;
+        private boolean closeAfterFlush;
+        private boolean httpBusy; // An HTTP handler is running; later requests wait in inbound
+
+        // Message being reassembled from fragments
+        private int messageOpcode;  // OP_CONTINUATION when no message is in progress
+        private boolean messageCompressed;
+        private ByteArrayOutputStream fragments;
+
+        // permessage-deflate state, fixed during the handshake
+        private boolean deflate;
+        private Deflater deflater; // Only with server context takeover; guarded by outbound
+        private Inflater inflater; // Only with client context takeover; used on the loop thread
+
+        private Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        Object attachment() {
+            return attachment;
+        }
+
+        /**
+         * @return the URI of the upgrade request, e.g. to read query parameters in onOpen
+         */
+        URI getRequestUri() {
+            return requestUri;
+        }
+
+        /**
+         * @return the subprotocol agreed in the handshake, or null if the client offered none
+         * the engine speaks
+         */
+        String getSubprotocol() {
+            return subprotocol;
+        }
+
+        void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        /**
+         * Queues a frame for this connection; the owning I/O loop writes it out.
+         * The frame is not consumed, so the same encoded frame can be shared by many connections.
+         * A connection whose queue is full or has made no write progress within the deadline is evicted.
+         *
+         * @return false if the connection is closed or was evicted
+         */
+        boolean send(Frame frame) {
+            if (closeSent) return false;
+            return enqueue(null, frame);
+        }
+
+        /**
+         * Starts the close handshake. The socket is closed once the client replies,
+         * or by the heartbeat sweep if it never does.
+         */
+        void close(int status, String reason) {
+            synchronized (outbound) {
+                if (closeSent || isClosed()) return;
+                closeSent = true;
+                closeSentAt = System.nanoTime();
+            }
+            enqueue(null, closeFrame(status, reason));
+        }
+
+        private ByteBuffer encode(Frame frame) {
+            boolean dataFrame = frame.opcode == OP_TEXT || frame.opcode == OP_BINARY;
+            if (!deflate || !dataFrame || frame.payload.length < config.deflateMinSize) return frame.raw;
+            if (deflater == null) return frame.deflated();
+            // Context takeover: compress per connection, in queue order
+            return encodeFrame(0xC0 | frame.opcode, deflate(deflater, frame.payload, false));
+        }
+
+        private boolean enqueue(ByteBuffer bytes, Frame frame) {
+            synchronized (outbound) {
+                if (isClosed()) return false;
+
+                int depth = outbound.size();
+                if (depth >= maxQueueDepth) {
+                    droppedQueueFull.increment();
+                } else if (depth > 0 && System.nanoTime() - lastProgress > writeDeadlineNanos) {
+                    droppedDeadline.increment();
+                } else {
+                    if (depth == 0) lastProgress = System.nanoTime();
+                    outbound.add((frame != null ? encode(frame) : bytes).duplicate());
+                    queuedFrames.incrementAndGet();
+                    if (depth + 1 > peakQueueDepth.get()) {
+                        peakQueueDepth.accumulateAndGet(depth + 1, Math::max);
+                    }
+                    if (depth == 0) loop.requestWrite(this);
+                    return true;
+                }
+            }
+            close();
+            return false;
+        }
+
+        private boolean isStalled(long now) {
+            synchronized (outbound) {
+                return !outbound.isEmpty() && now - lastProgress > writeDeadlineNanos;
+            }
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            socketCount.decrementAndGet();
+            synchronized (outbound) {
+                queuedFrames.addAndGet(-outbound.size());
+                outbound.clear();
+                if (deflater != null) deflater.end();
+            }
+            if (open) {
+                openConnections.decrementAndGet();
+                try {
+                    listener.onClose(this);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (writeOut() && closeAfterFlush) close();
+        }
+
+        /**
+         * @return true once the queue is empty
+         */
+        private boolean writeOut() throws IOException {
+            synchronized (outbound) {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer frame = outbound.peek();
+                    // A slow reader draining a large frame is still making progress
+                    if (channel.write(frame) > 0) lastProgress = System.nanoTime();
+                    if (frame.hasRemaining()) {
+                        // Socket buffer is full; resume when the channel becomes writable
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                    outbound.poll();
+                    queuedFrames.decrementAndGet();
+                    framesWritten.increment();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return true;
+            }
+        }
+
+        private void heartbeat(long now) {
+            if (!open) {
+                // Idle HTTP keep-alive connection, or an upgrade that never completed
+                if (!httpBusy && now - lastActivity > heartbeatTimeoutNanos) close();
+            } else if (closeSent) {
+                // Client never answered our close frame
+                if (now - closeSentAt > heartbeatTimeoutNanos) close();
+            } else if (pingSentAt != 0) {
+                if (now - pingSentAt > heartbeatTimeoutNanos) {
+                    droppedHeartbeat.increment();
+                    close();
+                }
+            } else if (now - lastActivity > pingIntervalNanos) {
+                pingSentAt = now;
+                enqueue(null, PING);
+            }
+        }
+
+        private void onReadable(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n == -1) {
+                close();
+                return;
+            }
+            if (n == 0) return;
+            readBuffer.flip();
+
+            // Any inbound traffic proves the client is alive
+            lastActivity = System.nanoTime();
+            pingSentAt = 0;
+
+            ByteBuffer data = readBuffer;
+            if (inbound != null) {
+                data = ByteBuffer.allocate(inbound.remaining() + readBuffer.remaining());
+                data.put(inbound).put(readBuffer).flip();
+            }
+            consume(data);
+        }
+
+        private void consume(ByteBuffer data) {
+            process(data);
+
+            if (!isClosed() && data.hasRemaining()) {
+                int limit = open ? MAX_FRAME_SIZE + 14 : MAX_HANDSHAKE_SIZE + MAX_REQUEST_BODY;
+                if (data.remaining() > limit) {
+                    close();
+                    return;
+                }
+                // Keep the partial handshake or frame until the rest arrives
+                inbound = ByteBuffer.allocate(data.remaining());
+                inbound.put(data).flip();
+            } else {
+                inbound = null;
+            }
+        }
+
+        private void process(ByteBuffer data) {
+            if (!open) {
+                // A pipelined request waits until the current response has been queued
+                if (httpBusy || closeAfterFlush) return;
+
+                int start = data.position();
+                int headerEnd = indexOfHeaderEnd(data);
+                if (headerEnd < 0) {
+                    if (data.remaining() > MAX_HANDSHAKE_SIZE) close();
+                    return;
+                }
+
+                byte[] head = new byte[headerEnd - start];
+                data.get(head);
+                String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+                String[] requestLine = lines[0].split(" ");
+                if (requestLine.length != 3) {
+                    close();
+                    return;
+                }
+                URI uri;
+                try {
+                    uri = new URI(requestLine[1]);
+                } catch (URISyntaxException e) {
+                    rejectHttp(400);
+                    return;
+                }
+                // "x:y" parses as an opaque URI with no path; only origin-form targets are served
+                if (uri.getPath() == null || !uri.getPath().startsWith("/")) {
+                    rejectHttp(400);
+                    return;
+                }
+                Headers headers = new Headers();
+                for (int i = 1; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon > 0) {
+                        headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+                    }
+                }
+
+                if ("websocket".equalsIgnoreCase(headers.getFirst("Upgrade"))) {
+                    requestUri = uri;
+                    if (!config.path.equals(uri.getPath())) {
+                        rejectHttp(404);
+                    } else if (!handshake(headers)) {
+                        close();
+                    }
+                    if (!open) return;
+                } else {
+                    if (headers.containsKey("Transfer-Encoding")) {
+                        rejectHttp(411);
+                        return;
+                    }
+                    long length;
+                    try {
+                        String value = headers.getFirst("Content-Length");
+                        length = value == null ? 0 : Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        length = -1;
+                    }
+                    if (length < 0 || length > MAX_REQUEST_BODY) {
+                        rejectHttp(length < 0 ? 400 : 413);
+                        return;
+                    }
+                    if (data.remaining() < length) {
+                        // Keep the whole request until the body has arrived
+                        data.position(start);
+                        return;
+                    }
+                    byte[] body = new byte[(int) length];
+                    data.get(body);
+                    dispatch(requestLine[0], uri, requestLine[2], headers, body);
+                    return;
+                }
+            }
+
+            while (!isClosed() && !closeAfterFlush && decodeFrame(data)) {
+                // Keep decoding complete frames
+            }
+        }
+
+        private void dispatch(String method, URI uri, String protocol, Headers headers, byte[] body) {
+            NioHttpExchange.Context context = findContext(uri.getPath());
+            if (context == null) {
+                rejectHttp(404);
+                return;
+            }
+            httpRequests.increment();
+
+            String connection = headers.getFirst("Connection");
+            boolean keepAlive = "HTTP/1.1".equals(protocol)
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+            InetSocketAddress local = null;
+            InetSocketAddress remote = null;
+            try {
+                local = (InetSocketAddress) channel.getLocalAddress();
+                remote = (InetSocketAddress) channel.getRemoteAddress();
+            } catch (IOException e) {
+                // Addresses are informational only
+            }
+            NioHttpExchange exchange = new NioHttpExchange(context, method, uri, protocol, headers, body,
+                    local, remote, keepAlive, this::respond);
+
+            httpBusy = true;
+            Executor handlerExecutor = executor;
+            if (handlerExecutor == null) {
+                exchange.run();
+                return;
+            }
+            try {
+                handlerExecutor.execute(exchange::run);
+            } catch (RejectedExecutionException e) {
+                httpBusy = false;
+                httpRejected.increment();
+                rejectHttp(503);
+            }
+        }
+
+        // Called from the handler's thread once the response is complete; always resumes on the loop
+        private void respond(ByteBuffer response, boolean keepAlive) {
+            loop.execute(() -> {
+                httpBusy = false;
+                lastActivity = System.nanoTime();
+                if (!keepAlive) closeAfterFlush = true;
+                if (!enqueue(response, null)) return;
+
+                if (keepAlive && inbound != null) {
+                    ByteBuffer pending = inbound;
+                    inbound = null;
+                    consume(pending);
+                }
+            });
+        }
+
+        // Answers a request that never reaches a handler, then drops the connection
+        private void rejectHttp(int status) {
+            closeAfterFlush = true;
+            String response = "HTTP/1.1 " + status + " " + (status == 404 ? "Not Found" : "Error") + "\r\n" +
+                    (status == 503 ? "Retry-After: 1\r\n" : "") +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n";
+            enqueue(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)), null);
+        }
+
+        private boolean handshake(Headers headers) {
+            String wsKey = headers.getFirst("Sec-WebSocket-Key");
+            if (wsKey == null) return false;
+
+            String acceptKey;
+            try {
+                acceptKey = calculateWebSocketAccept(wsKey);
+            } catch (Exception e) {
+                return false;
+            }
+
+            // Repeated headers are combined as a comma-separated list
+            List<String> offers = headers.get("Sec-WebSocket-Extensions");
+            String extension = negotiateDeflate(offers == null ? null : String.join(", ", offers));
+            List<String> protocols = headers.get("Sec-WebSocket-Protocol");
+            subprotocol = negotiateSubprotocol(protocols == null ? null : String.join(", ", protocols));
+
+            String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: Upgrade\r\n" +
+                    "Sec-WebSocket-Accept: " + acceptKey + "\r\n" +
+                    (extension != null ? "Sec-WebSocket-Extensions: " + extension + "\r\n" : "") +
+                    (subprotocol != null ? "Sec-WebSocket-Protocol: " + subprotocol + "\r\n" : "") +
+                    "\r\n";
+            if (!enqueue(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)), null)) return false;
+
+            open = true;
+            openConnections.incrementAndGet();
+            try {
+                listener.onOpen(this);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        // The client's first offered subprotocol that the engine speaks, or null
+        private String negotiateSubprotocol(String offers) {
+            if (offers == null) return null;
+            for (String offer : offers.split(",")) {
+                String name = offer.trim();
+                if (config.subprotocols.contains(name)) return name;
+            }
+            return null;
+        }
+
+        /**
+         * Accepts the first acceptable permessage-deflate offer, if any.
+         *
+         * @return the Sec-WebSocket-Extensions response value, or null to run uncompressed
+         */
+        private String negotiateDeflate(String offers) {
+            if (!config.deflate || offers == null) return null;
+
+            for (String offer : offers.split(",")) {
+                String[] params = offer.split(";");
+                if (!params[0].trim().equalsIgnoreCase("permessage-deflate")) continue;
+
+                boolean acceptable = true;
+                boolean serverNoContextTakeover = false;
+                boolean serverMaxWindowBits = false;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    int eq = param.indexOf('=');
+                    String name = (eq < 0 ? param : param.substring(0, eq)).trim().toLowerCase();
+                    String value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+                    switch (name) {
+                        case "server_no_context_takeover":
+                            serverNoContextTakeover = true;
+                            break;
+                        case "server_max_window_bits":
+                            // java.util.zip always uses a 32KB window, so only 15 can be honored
+                            serverMaxWindowBits = true;
+                            if (!"15".equals(value)) acceptable = false;
+                            break;
+                        case "client_no_context_takeover":
+                        case "client_max_window_bits":
+                            // Any client window size can be inflated
+                            break;
+                        default:
+                            acceptable = false;
+                    }
+                }
+                if (!acceptable) continue;
+
+                StringBuilder response = new StringBuilder("permessage-deflate");
+                if (config.deflateContextTakeover && !serverNoContextTakeover) {
+                    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                } else {
+                    response.append("; server_no_context_takeover");
+                }
+                if (serverMaxWindowBits) response.append("; server_max_window_bits=15");
+                if (config.deflateContextTakeover) {
+                    inflater = new Inflater(true);
+                } else {
+                    response.append("; client_no_context_takeover");
+                }
+                deflate = true;
+                return response.toString();
+            }
+            return null;
+        }
+
+        /**
+         * Decodes one frame from the buffer and acts on it.
+         *
+         * @return false if the buffer does not yet hold a complete frame or the connection is failing
+         */
+        private boolean decodeFrame(ByteBuffer data) {
+            int start = data.position();
+            if (data.remaining() < 2) return false;
+
+            int firstByte = data.get(start) & 0xFF;
+            int secondByte = data.get(start + 1) & 0xFF;
+            boolean fin = (firstByte & 0x80) != 0;
+            boolean rsv1 = (firstByte & 0x40) != 0;
+            int opcode = firstByte & 0x0F;
+            boolean masked = (secondByte & 0x80) != 0;
+            boolean control = (opcode & 0x08) != 0;
+            long payloadLength = secondByte & 0x7F;
+            int headerLength = 2;
+
+            // Header checks that do not need the payload
+            if ((firstByte & 0x30) != 0 || !masked) {
+                return fail(CLOSE_PROTOCOL_ERROR, "Bad frame header");
+            }
+            if (control) {
+                if (!fin || rsv1 || payloadLength > 125 || opcode > OP_PONG) {
+                    return fail(CLOSE_PROTOCOL_ERROR, "Bad control frame");
+                }
+            } else if (opcode > OP_BINARY) {
+                return fail(CLOSE_PROTOCOL_ERROR, "Unknown opcode");
+            }
+
+            if (payloadLength == 126) {
+                if (data.remaining() < 4) return false;
+                payloadLength = data.getShort(start + 2) & 0xFFFF;
+                headerLength = 4;
+            } else if (payloadLength == 127) {
+                if (data.remaining() < 10) return false;
+                payloadLength = data.getLong(start + 2);
+                headerLength = 10;
+            }
+
+            if (payloadLength < 0 || payloadLength > MAX_FRAME_SIZE) {
+                return fail(CLOSE_TOO_BIG, "Frame too large");
+            }
+
+            int maskOffset = start + headerLength;
+            headerLength += 4;
+            if (data.remaining() < headerLength + payloadLength) return false;
+
+            byte[] payload = new byte[(int) payloadLength];
+            data.position(start + headerLength);
+            data.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= data.get(maskOffset + (i & 3));
+            }
+
+            if (control) {
+                onControlFrame(opcode, payload);
+                return true;
+            }
+
+            // Data frames: start a message, or continue the one in progress
+            if (opcode == OP_CONTINUATION) {
+                if (messageOpcode == OP_CONTINUATION || rsv1) {
+                    return fail(CLOSE_PROTOCOL_ERROR, "Unexpected continuation");
+                }
+            } else {
+                if (messageOpcode != OP_CONTINUATION) {
+                    return fail(CLOSE_PROTOCOL_ERROR, "Expected continuation");
+                }
+                if (rsv1 && !deflate) {
+                    return fail(CLOSE_PROTOCOL_ERROR, "RSV1 without permessage-deflate");
+                }
+                messageOpcode = opcode;
+                messageCompressed = rsv1;
+            }
+
+            byte[] message = payload;
+            if (!fin || fragments != null) {
+                if (fragments == null) fragments = new ByteArrayOutputStream();
+                fragments.write(payload, 0, payload.length);
+                if (fragments.size() > MAX_FRAME_SIZE) {
+                    return fail(CLOSE_TOO_BIG, "Message too large");
+                }
+                if (!fin) return true;
+                message = fragments.toByteArray();
+            }
+
+            int completedOpcode = messageOpcode;
+            boolean completedCompressed = messageCompressed;
+            messageOpcode = OP_CONTINUATION;
+            messageCompressed = false;
+            fragments = null;
+
+            if (completedCompressed) {
+                try {
+                    message = inflateMessage(message);
+                } catch (DataFormatException e) {
+                    return fail(CLOSE_INVALID_PAYLOAD, "Bad compressed data");
+                }
+            }
+
+            if (completedOpcode == OP_TEXT) {
+                String text;
+                try {
+                    text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(message)).toString();
+                } catch (CharacterCodingException e) {
+                    return fail(CLOSE_INVALID_PAYLOAD, "Invalid UTF-8");
+                }
+                try {
+                    listener.onMessage(this, text);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            // Binary messages are not used by the festival protocol and are ignored
+            return true;
+        }
+
+        private void onControlFrame(int opcode, byte[] payload) {
+            switch (opcode) {
+                case OP_PING:
+                    enqueue(null, new Frame(OP_PONG, payload));
+                    break;
+                case OP_PONG:
+                    // Liveness is already recorded for any inbound data
+                    break;
+                case OP_CLOSE:
+                    if (closeSent) {
+                        // Reply to our own close frame: the handshake is complete
+                        close();
+                    } else {
+                        // Echo the status code, then close once it is written
+                        int status = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : CLOSE_NORMAL;
+                        closeSent = true;
+                        closeAfterFlush = true;
+                        enqueue(null, closeFrame(status, ""));
+                    }
+                    break;
+            }
+        }
+
+        // Fails the connection: send a close frame with the given status and drop the socket once it is written
+        private boolean fail(int status, String reason) {
+            if (!closeSent) {
+                closeSent = true;
+                enqueue(null, closeFrame(status, reason));
+            }
+            closeAfterFlush = true;
+            return false;
+        }
+
+        private byte[] inflateMessage(byte[] payload) throws DataFormatException {
+            if (inflater != null) return inflate(inflater, payload);
+            // No client context takeover: every message is self-contained, so the loop's inflater is reused
+            loop.inflater.reset();
+            return inflate(loop.inflater, payload);
+        }
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer data) {
+        for (int i = data.position(); i + 3 < data.limit(); i++) {
+            if (data.get(i) == '\r' && data.get(i + 1) == '\n' && data.get(i + 2) == '\r' && data.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+}
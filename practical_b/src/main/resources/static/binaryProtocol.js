@@ -0,0 +1,130 @@
+// binaryProtocol.js
+// Decoder for the "festival.bin.v1" WebSocket subprotocol (see BinaryProtocol.java).
+// Turns binary frames into the same message objects the JSON protocol parses to.
+
+const FestivalBinary = (() => {
+    const PROTOCOL = 'festival.bin.v1';
+    // Offered second, so a server that only speaks JSON still accepts the socket
+    const PROTOCOLS = [PROTOCOL, 'festival.json.v1'];
+
+    const STRINGS = 1;
+    const QUESTION_START = 2;
+    const QUESTION_END = 3;
+    const QUESTION_TICK = 4;
+    const ANSWER_ACK = 5;
+    const QUIZ_RESULT = 6;
+
+    // FestivalServer.AnswerResult, in declaration order
+    const ANSWER_RESULTS = ['ACCEPTED', 'NO_ACTIVE_QUESTION', 'PLAYER_NOT_FOUND', 'INVALID', 'DUPLICATE'];
+
+    const utf8 = new TextDecoder();
+
+    // One decoder per socket: it keeps the string table the server sent on that socket
+    function createDecoder() {
+        let table = { id: 0, strings: [] };
+
+        return function decode(buffer) {
+            const bytes = new Uint8Array(buffer);
+            let pos = 0;
+
+            function varint() {
+                let value = 0;
+                let shift = 0;
+                let b;
+                do {
+                    b = bytes[pos++];
+                    value += (b & 0x7f) * 2 ** shift;
+                    shift += 7;
+                } while (b & 0x80);
+                return value;
+            }
+
+            function zigzag() {
+                const v = varint();
+                return v % 2 === 0 ? v / 2 : -(v + 1) / 2;
+            }
+
+            function string() {
+                const length = varint();
+                const s = utf8.decode(bytes.subarray(pos, pos + length));
+                pos += length;
+                return s;
+            }
+
+            function optionalString() {
+                const length = varint();
+                if (length === 0) return undefined;
+                const s = utf8.decode(bytes.subarray(pos, pos + length - 1));
+                pos += length - 1;
+                return s;
+            }
+
+            const messages = [];
+            while (pos < bytes.length) {
+                const type = bytes[pos++];
+                const end = varint() + pos;
+
+                switch (type) {
+                    case STRINGS: {
+                        const id = varint();
+                        const strings = new Array(varint());
+                        for (let i = 0; i < strings.length; i++) strings[i] = string();
+                        table = { id, strings };
+                        break;
+                    }
+
+                    case QUESTION_START: {
+                        varint(); // Table ID; the server sends a table before the records that use it
+                        const questionId = varint();
+                        const totalQuestions = varint();
+                        const text = string();
+                        const timeLimit = varint();
+                        const choices = new Array(varint());
+                        for (let i = 0; i < choices.length; i++) choices[i] = table.strings[varint()];
+                        messages.push({
+                            type: 'question.start', questionId, questionNumber: questionId + 1,
+                            totalQuestions, text, choices, timeLimit
+                        });
+                        break;
+                    }
+
+                    case QUESTION_END: {
+                        const message = { type: 'question.end', questionId: varint(), correctIndex: varint() };
+                        message.correctAnswer = table.strings[varint()];
+                        const explanation = optionalString();
+                        if (explanation !== undefined) message.explanation = explanation;
+                        messages.push(message);
+                        break;
+                    }
+
+                    case QUESTION_TICK:
+                        messages.push({ type: 'question.tick', questionId: varint(), remaining: varint() });
+                        break;
+
+                    case ANSWER_ACK: {
+                        const id = varint();
+                        const result = ANSWER_RESULTS[varint()];
+                        const message = { type: 'answer.ack', questionId: id === 0 ? null : id - 1, ok: result === 'ACCEPTED' };
+                        if (!message.ok) message.reason = result;
+                        messages.push(message);
+                        break;
+                    }
+
+                    case QUIZ_RESULT: {
+                        const personal = { nickname: string(), score: zigzag(), rank: varint() };
+                        const top3 = new Array(varint());
+                        for (let i = 0; i < top3.length; i++) {
+                            top3[i] = { rank: varint(), nickname: string(), score: zigzag() };
+                        }
+                        messages.push({ type: 'quiz.result', personal, top3, total: varint() });
+                        break;
+                    }
+                }
+                pos = end; // Skips record types this page does not know
+            }
+            return messages;
+        };
+    }
+
+    return { PROTOCOL, PROTOCOLS, createDecoder };
+})();
@@ -0,0 +1,180 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Compares the "festival.bin.v1" frames from {@link BinaryProtocol} with the JSON frames
+ * FestivalServer sends for the same messages: bytes on the wire, raw and with
+ * permessage-deflate, and the time to encode each message on the server.
+ * <p>
+ * Questions and choices are Japanese and repeat across the 20 questions, like a real bank,
+ * so the string table pays off the way it does in a session. question.start and
+ * question.end are built as QuizSession.setQuestions prepares them, compression included.
+ * The deflated sizes are what a frame costs if compressed; the engine sends messages under
+ * festival.ws.deflate.minSize (256 B) uncompressed regardless.
+ * <p>
+ * Run with {@code java -cp <classes> jp.ac.u_aizu.quizapp.BinaryProtocolBenchmark [frames.bin]}.
+ * With a file argument it also writes every binary/JSON payload pair there for
+ * {@code src/test/js/binaryProtocolBenchmark.js}, which checks that the browser decoder
+ * yields the same objects as JSON.parse and times both.
+ */
+public class BinaryProtocolBenchmark {
+
+    private static final int ROUNDS = 7;
+    private static final int ITERATIONS = 100_000;
+
+    static volatile long sink; // Keeps the encoded frames observable
+
+    private static final String[][] BANK = {
+            {"縄文時代の特徴的な土器の模様は何と呼ばれますか？", "縄目模様", "弥生模様", "古墳模様", "飛鳥模様"},
+            {"打製石器は主に何に使われましたか？", "狩りや調理", "田植え", "機織り", "祭り"},
+            {"弥生時代に大陸から伝わった技術はどれですか？", "稲作", "縄目模様", "狩りや調理", "茶道"},
+            {"古墳の周りに並べられた素焼きの焼き物は何ですか？", "埴輪", "土偶", "銅鐸", "茶器"},
+            {"会津地方の伝統工芸品はどれですか？", "会津塗", "輪島塗", "津軽塗", "埴輪"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<FestivalServer.Question> questions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String[] row = BANK[i % BANK.length];
+            String[] choices = {row[1], row[2], row[3], row[4]};
+            questions.add(new FestivalServer.Question(i + 1, row[0], choices, i % 4,
+                    i % 2 == 0 ? "展示室" + (i % 5 + 1) + "の解説パネルを見てみよう。" : null, 20));
+        }
+        BinaryProtocol.StringTable table = new BinaryProtocol.StringTable(questions, 0, questions.size());
+        List<Leaderboard.Entry> top3 = List.of(
+                new Leaderboard.Entry(1, "p1", "はなこ", 4000),
+                new Leaderboard.Entry(2, "p2", "たろう", 3500),
+                new Leaderboard.Entry(3, "p3", "Aizu-kid", 3100));
+        Leaderboard.Entry personal = new Leaderboard.Entry(42, "p42", "けんた", 1800);
+        byte[] binaryTail = BinaryProtocol.resultTail(top3, 250);
+        String jsonTail = resultTail(top3, 250);
+        int n = questions.size();
+
+        List<Kind> kinds = List.of(
+                new Kind("question.start", n,
+                        i -> FestivalServer.questionStartFrame(questions, i),
+                        i -> BinaryProtocol.questionStart(table, questions, i)),
+                new Kind("question.end", n,
+                        i -> FestivalServer.questionEndFrame(questions, i),
+                        i -> BinaryProtocol.questionEnd(table, questions, i)),
+                new Kind("answer.ack", 1,
+                        i -> WebSocketEngine.textFrame(answerAck(7, FestivalServer.AnswerResult.ACCEPTED)),
+                        i -> BinaryProtocol.answerAck(7, FestivalServer.AnswerResult.ACCEPTED)),
+                new Kind("question.tick", 1,
+                        i -> WebSocketEngine.textFrame(questionTick(7, 15)),
+                        i -> BinaryProtocol.questionTick(7, 15)),
+                new Kind("quiz.result", 1,
+                        i -> WebSocketEngine.textFrame(quizResult(personal, jsonTail)),
+                        i -> BinaryProtocol.quizResult(personal, binaryTail)));
+
+        System.out.printf("String table: %d B on the wire (%d B deflated), once per session%n%n",
+                table.frame.wireLength(false), table.frame.wireLength(true));
+        System.out.printf("%-15s %10s %10s %12s %12s %12s %12s%n", "message", "JSON B", "binary B",
+                "JSON defl B", "binary defl", "JSON encode", "bin encode");
+        for (Kind kind : kinds) {
+            double json = 0, binary = 0, jsonDeflated = 0, binaryDeflated = 0;
+            for (int i = 0; i < kind.count; i++) {
+                WebSocketEngine.Frame j = kind.json.apply(i), b = kind.binary.apply(i);
+                json += j.wireLength(false);
+                binary += b.wireLength(false);
+                jsonDeflated += j.wireLength(true);
+                binaryDeflated += b.wireLength(true);
+            }
+            System.out.printf("%-15s %10.0f %10.0f %12.0f %12.0f %9.0f ns %9.0f ns%n", kind.name,
+                    json / kind.count, binary / kind.count, jsonDeflated / kind.count, binaryDeflated / kind.count,
+                    encodeNanos(kind.json, kind.count), encodeNanos(kind.binary, kind.count));
+        }
+
+        if (args.length > 0) {
+            try (OutputStream file = Files.newOutputStream(Paths.get(args[0]));
+                 DataOutputStream out = new DataOutputStream(file)) {
+                out.writeInt(1 + 2 * n + 3);
+                writePair(out, table.frame.payload(), new byte[0]);
+                for (int i = 0; i < n; i++) {
+                    writePair(out, kinds.get(0).binary.apply(i).payload(), kinds.get(0).json.apply(i).payload());
+                    writePair(out, kinds.get(1).binary.apply(i).payload(), kinds.get(1).json.apply(i).payload());
+                }
+                for (Kind kind : kinds.subList(2, 5)) {
+                    writePair(out, kind.binary.apply(0).payload(), kind.json.apply(0).payload());
+                }
+            }
+            System.out.println("\nFrames written to " + args[0]);
+        }
+    }
+
+    private static final class Kind {
+        final String name;
+        final int count;
+        final IntFunction<WebSocketEngine.Frame> json;
+        final IntFunction<WebSocketEngine.Frame> binary;
+
+        Kind(String name, int count, IntFunction<WebSocketEngine.Frame> json, IntFunction<WebSocketEngine.Frame> binary) {
+            this.name = name;
+            this.count = count;
+            this.json = json;
+            this.binary = binary;
+        }
+    }
+
+    // Best of ROUNDS, so a GC or JIT pause in one round does not count
+    private static double encodeNanos(IntFunction<WebSocketEngine.Frame> encode, int count) {
+        double best = Double.MAX_VALUE;
+        long bytes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                bytes += encode.apply(i % count).wireLength(false);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) ITERATIONS);
+        }
+        sink = bytes;
+        return best;
+    }
+
+    private static void writePair(DataOutputStream out, byte[] binary, byte[] json) throws IOException {
+        out.writeInt(binary.length);
+        out.write(binary);
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    // The JSON messages FestivalServer builds inline (sendAnswerAck, scheduleTick, publishFinalResults)
+
+    private static String answerAck(int questionId, FestivalServer.AnswerResult result) {
+        StringBuilder ack = new StringBuilder("{\"type\":\"answer.ack\",\"questionId\":")
+                .append(questionId).append(",\"ok\":").append(result == FestivalServer.AnswerResult.ACCEPTED);
+        if (result != FestivalServer.AnswerResult.ACCEPTED) {
+            ack.append(",\"reason\":\"").append(result.name()).append("\"");
+        }
+        return ack.append("}").toString();
+    }
+
+    private static String questionTick(int index, int remaining) {
+        return "{\"type\":\"question.tick\",\"questionId\":" + index + ",\"remaining\":" + remaining + "}";
+    }
+
+    private static String resultTail(List<Leaderboard.Entry> top3, int total) {
+        StringBuilder sb = new StringBuilder(",\"top3\":[");
+        for (int i = 0; i < top3.size(); i++) {
+            Leaderboard.Entry e = top3.get(i);
+            if (i > 0) sb.append(",");
+            sb.append("{\"rank\":").append(e.rank)
+              .append(",\"nickname\":\"").append(Json.escape(e.nickname))
+              .append("\",\"score\":").append(e.score).append("}");
+        }
+        return sb.append("],\"total\":").append(total).append("}").toString();
+    }
+
+    private static String quizResult(Leaderboard.Entry e, String tail) {
+        return "{\"type\":\"quiz.result\",\"personal\":{\"nickname\":\"" +
+                Json.escape(e.nickname) + "\",\"score\":" + e.score + ",\"rank\":" + e.rank + "}" + tail;
+    }
+}
@@ -0,0 +1,156 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Harness for {@link DeadlineTimer}: several threads schedule thousands of deadlines over a
+ * few wheel rotations and cancel about half of them, some right away and some just before
+ * they are due, racing the wheel thread. A deadline whose cancel() returned true must never
+ * fire; every other one must fire exactly once, never early and at most one tick late.
+ * <p>
+ * Run with {@code java -cp <classes> jp.ac.u_aizu.quizapp.DeadlineTimerTest [deadlines]}
+ * (default 20000). A probe thread sleeping one tick at a time runs alongside and records
+ * how late the OS wakes it; the lateness bound is one tick plus that wake-up delay (and
+ * {@link #WAKEUP_MARGIN_MS}), so a busy machine does not count against the wheel.
+ * Exits with an AssertionError if a check fails.
+ */
+public class DeadlineTimerTest {
+
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 64; // 640 ms per rotation, so longer delays take several
+    // Nothing is due while the deadlines are being scheduled, so the scheduling threads do not
+    // compete with the wheel thread for the CPU when a deadline is due
+    private static final long MIN_DELAY_MS = 300;
+    private static final long MAX_DELAY_MS = 2000;
+    private static final long WAKEUP_MARGIN_MS = 5;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        DeadlineTimer timer = new DeadlineTimer("deadline-test", TICK_MS, WHEEL_SIZE);
+        warmUp(timer, count);
+
+        // nanoTime before and after schedule() plus the delay: the deadline lies in between
+        long[] earliest = new long[count];
+        long[] latest = new long[count];
+        AtomicIntegerArray fired = new AtomicIntegerArray(count);
+        AtomicLongArray firedAt = new AtomicLongArray(count);
+        boolean[] cancelled = new boolean[count]; // cancel() returned true
+        DeadlineTimer.Timeout[] timeouts = new DeadlineTimer.Timeout[count];
+
+        AtomicLong wakeupDelay = new AtomicLong();
+        Thread probe = new Thread(() -> {
+            long sleep = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+            while (!Thread.currentThread().isInterrupted()) {
+                long before = System.nanoTime();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wakeupDelay.accumulateAndGet(System.nanoTime() - before - sleep, Math::max);
+            }
+        }, "wakeup-probe");
+        probe.start();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int first = t;
+            futures.add(pool.submit(() -> {
+                SplittableRandom random = new SplittableRandom(first);
+                go.await();
+                List<Integer> lateCancels = new ArrayList<>();
+                for (int i = first; i < count; i += THREADS) {
+                    int id = i;
+                    long delayMs = random.nextLong(MIN_DELAY_MS, MAX_DELAY_MS);
+                    earliest[id] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                    timeouts[id] = timer.schedule(() -> {
+                        firedAt.set(id, System.nanoTime());
+                        fired.incrementAndGet(id);
+                    }, delayMs, TimeUnit.MILLISECONDS);
+                    latest[id] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                    int kind = random.nextInt(4);
+                    if (kind == 0) {
+                        cancelled[id] = timeouts[id].cancel();
+                    } else if (kind == 1) {
+                        lateCancels.add(id);
+                    }
+                }
+                // Cancel the rest near their deadlines, while the wheel may be firing them
+                lateCancels.sort((a, b) -> Long.compare(earliest[a], earliest[b]));
+                for (int id : lateCancels) {
+                    long wait = earliest[id] - TimeUnit.MILLISECONDS.toNanos(TICK_MS) - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                    cancelled[id] = timeouts[id].cancel();
+                }
+                return null;
+            }));
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS + 1000);
+        while (timer.pending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(TICK_MS);
+        }
+        check(timer.pending() == 0, "still pending: " + timer.pending());
+        // Let a cancelled deadline that would wrongly fire get its chance
+        Thread.sleep(2 * TICK_MS);
+        probe.interrupt();
+        probe.join();
+
+        long bound = TimeUnit.MILLISECONDS.toNanos(TICK_MS + WAKEUP_MARGIN_MS) + wakeupDelay.get();
+        int live = 0, cancels = 0;
+        long[] lateness = new long[count];
+        for (int id = 0; id < count; id++) {
+            if (cancelled[id]) {
+                cancels++;
+                check(fired.get(id) == 0, "cancelled deadline " + id + " fired");
+                check(timeouts[id].isCancelled(), "deadline " + id + " not reported as cancelled");
+                continue;
+            }
+            check(fired.get(id) == 1, "deadline " + id + " fired " + fired.get(id) + " times");
+            check(firedAt.get(id) >= earliest[id], "deadline " + id + " fired " + (earliest[id] - firedAt.get(id)) / 1000 + " us early");
+            long late = Math.max(0, firedAt.get(id) - latest[id]);
+            check(late <= bound, "deadline " + id + " fired " + late / 1_000_000 + " ms late");
+            lateness[live++] = late;
+        }
+        Arrays.sort(lateness, 0, live);
+        System.out.printf("%d deadlines in %d ms: %d fired, %d cancelled; lateness p50 %.1f ms, p99 %.1f ms, max %.1f ms (tick %d ms, wake-up delay up to %.1f ms)%n",
+                count, (System.nanoTime() - start) / 1_000_000, live, cancels,
+                lateness[live / 2] / 1e6, lateness[live * 99 / 100] / 1e6, lateness[live - 1] / 1e6, TICK_MS, wakeupDelay.get() / 1e6);
+        System.out.println("OK");
+    }
+
+    // Compiles the schedule, cancel and expiry paths first, so JIT pauses do not count as lateness
+    private static void warmUp(DeadlineTimer timer, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            DeadlineTimer.Timeout timeout = timer.schedule(() -> { }, i % 3 * TICK_MS, TimeUnit.MILLISECONDS);
+            if (i % 2 == 0) timeout.cancel();
+        }
+        while (timer.pending() > 0) {
+            Thread.sleep(TICK_MS);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,115 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark for {@link Journal}: write throughput under concurrent appenders for a range of
+ * group-commit windows (festival.journal.commitMs), and how long recovery takes to reopen
+ * and replay the resulting file.
+ * <p>
+ * Each writer thread stands for a client waiting on its answer: it appends an answer
+ * command shaped like FestivalServer's and waits until it is durable before the next one.
+ * Recovery reopens the journal (which checks for a torn tail) and replays every entry
+ * through {@link Json#fields}, the first step of applying a command.
+ * <p>
+ * Run with {@code java -cp <classes> jp.ac.u_aizu.quizapp.JournalBenchmark [entries] [writers] [commitMs,...]}
+ * (defaults 50000, 64 and 0,1,2,5). The files go to a temporary directory on the default
+ * file system, so run it on the disk the journal will live on.
+ */
+public class JournalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long[] windows = args.length > 2
+                ? Arrays.stream(args[2].split(",")).mapToLong(Long::parseLong).toArray()
+                : new long[]{0, 1, 2, 5};
+
+        Path dir = Files.createTempDirectory("journal-bench");
+        try {
+            // Unreported first pass, so the first window measured does not pay for JIT compilation
+            run(dir.resolve("warmup.journal"), windows[0], Math.max(1, entries / 5), writers, false);
+            System.out.printf("%d entries, %d writers%n", entries, writers);
+            System.out.printf("%9s %12s %8s %12s %10s %10s %12s %12s%n", "commitMs", "entries/s",
+                    "fsyncs", "per fsync", "p50 ms", "p99 ms", "open ms", "replay ms");
+            for (long commitMs : windows) {
+                run(dir.resolve("bench-" + commitMs + ".journal"), commitMs, entries, writers, true);
+            }
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void run(Path path, long commitMs, int entries, int writers, boolean report) throws Exception {
+        long[] latencies = new long[entries];
+        AtomicLong next = new AtomicLong();
+        long elapsed;
+        long syncs;
+        try (Journal journal = new Journal(path, commitMs)) {
+            ExecutorService pool = Executors.newFixedThreadPool(writers);
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                futures.add(pool.submit(() -> {
+                    go.await();
+                    long i;
+                    while ((i = next.getAndIncrement()) < entries) {
+                        long start = System.nanoTime();
+                        journal.append(command(i), null).join();
+                        latencies[(int) i] = System.nanoTime() - start;
+                    }
+                    return null;
+                }));
+            }
+            long start = System.nanoTime();
+            go.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            syncs = journal.getSyncs();
+        }
+
+        // Recovery: what startup does before the server takes requests
+        long start = System.nanoTime();
+        new Journal(path, commitMs).close();
+        long openNanos = System.nanoTime() - start;
+        AtomicLong fields = new AtomicLong();
+        start = System.nanoTime();
+        long replayed = Journal.replay(path, 0, line -> fields.addAndGet(Json.fields(line).size()));
+        long replayNanos = System.nanoTime() - start;
+        if (replayed != entries) throw new AssertionError("replayed " + replayed + " of " + entries + " entries");
+
+        if (!report) return;
+        Arrays.sort(latencies);
+        System.out.printf("%9d %12.0f %8d %12.1f %10.2f %10.2f %12.1f %12.1f%n", commitMs,
+                entries / (elapsed / 1e9), syncs, entries / (double) Math.max(1, syncs),
+                latencies[entries / 2] / 1e6, latencies[entries * 99 / 100] / 1e6,
+                openNanos / 1e6, replayNanos / 1e6);
+    }
+
+    // An answer command as FestivalServer.replicate writes it
+    private static String command(long id) {
+        return new Json.Writer(160).beginObject()
+                .field("room", "default").field("origin", "bench").field("id", id)
+                .field("cmd", "answer").field("at", System.currentTimeMillis())
+                .field("questionId", (int) (id % 10)).field("choice", (int) (id % 4))
+                .field("playerId", "player-" + (id % 5000))
+                .endObject().toString();
+    }
+}
@@ -0,0 +1,327 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times {@link Json} against the ad hoc helpers it replaced, on the inputs the servers see:
+ * the answer.submit WebSocket message, a replicated bus command, the exhibit data, a large
+ * quizzes.json and the session status body. The old helpers are kept verbatim in
+ * {@link Baseline}; each pair is first checked to produce the same result.
+ * <p>
+ * JMH is not available in this tree, so this is a plain harness: every case is warmed up,
+ * then timed over several rounds and the best round is reported.
+ * <p>
+ * Run from practical_b (for the exhibit data) with
+ * {@code java -cp <classes> jp.ac.u_aizu.quizapp.JsonBenchmark}.
+ */
+public class JsonBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final Path EXHIBITS = Paths.get("src/main/resources/data/data_updated.json");
+
+    static volatile Object sink; // Keeps each result observable
+
+    public static void main(String[] args) throws Exception {
+        // A player's answer, read field by field before and in one pass now (handleWebSocketMessage)
+        String answer = "{\"type\":\"answer.submit\",\"questionId\":3,\"choice\":2}";
+        check(oneAnswerPass(answer) == oldAnswer(answer), "answer.submit");
+        time("answer.submit, 3 x extractJsonField", 2_000_000, () -> oldAnswer(answer));
+        time("answer.submit, Json.fields", 2_000_000, () -> {
+            Map<String, String> m = Json.fields(answer);
+            return m.get("type").length() + Integer.parseInt(m.get("questionId")) + Integer.parseInt(m.get("choice"));
+        });
+        time("answer.submit, one pass (server)", 2_000_000, () -> oneAnswerPass(answer));
+
+        // A command as replicate() publishes it and every node reads it
+        String command = "{\"room\":\"default\",\"origin\":\"n4f2a\",\"id\":12345,\"cmd\":\"answer\"," +
+                "\"at\":1760000000000,\"questionId\":3,\"choice\":2,\"playerId\":\"p1x2y3z4\"}";
+        String[] names = {"room", "origin", "id", "cmd", "at", "questionId", "choice", "playerId"};
+        for (String name : names) {
+            check(Baseline.extractJsonField(command, name).equals(Json.fields(command).get(name)), "command " + name);
+        }
+        time("bus command, 8 x extractJsonField", 1_000_000, () -> {
+            int n = 0;
+            for (String name : names) n += Baseline.extractJsonField(command, name).length();
+            return n;
+        });
+        time("bus command, Json.fields", 1_000_000, () -> {
+            Map<String, String> m = Json.fields(command);
+            int n = 0;
+            for (String name : names) n += m.get(name).length();
+            return n;
+        });
+
+        // ThemeController's exhibit data
+        if (Files.exists(EXHIBITS)) {
+            String exhibits = Files.readString(EXHIBITS, StandardCharsets.UTF_8);
+            check(Baseline.exhibits(exhibits) == exhibits(exhibits), "exhibit count");
+            time("exhibits, regex per field", 200, () -> Baseline.exhibits(exhibits));
+            time("exhibits, Json.Reader", 200, () -> exhibits(exhibits));
+        } else {
+            System.out.println("(" + EXHIBITS + " not found; run from practical_b to time the exhibits)");
+        }
+
+        // A large question bank
+        StringBuilder bank = new StringBuilder("[");
+        for (int i = 0; i < 30_000; i++) {
+            if (i > 0) bank.append(",\n");
+            bank.append("{\"question\":\"第").append(i).append("問：縄文時代の土器の模様は何と呼ばれますか？\",")
+                .append("\"choices\":[\"縄目模様\",\"弥生模様\",\"古墳模様\",\"飛鳥模様\"],\"answer\":\"縄目模様\",")
+                .append("\"explanation\":\"縄を転がして付けた模様です。\",\"timeLimit\":20}");
+        }
+        String bankJson = bank.append("]").toString();
+        check(Baseline.parseQuestions(bankJson).size() == FestivalServer.parseQuestions(bankJson).size(), "bank size");
+        time("quizzes.json 30k, old parseQuestions", 20, () -> Baseline.parseQuestions(bankJson));
+        time("quizzes.json 30k, Json.Reader", 20, () -> FestivalServer.parseQuestions(bankJson));
+
+        // /api/session/status
+        String text = "縄文時代の特徴的な土器の模様は何と呼ばれますか？";
+        String[] choices = {"縄目模様", "弥生模様", "古墳模様", "飛鳥模様"};
+        check(new String(Baseline.status("default", text, choices), StandardCharsets.UTF_8)
+                .equals(new String(status("default", text, choices).toByteArray(), StandardCharsets.UTF_8)), "status body");
+        time("status body, StringBuilder + getBytes", 2_000_000, () -> Baseline.status("default", text, choices));
+        time("status body, Json.Writer", 2_000_000, () -> status("default", text, choices));
+    }
+
+    private static int oldAnswer(String message) {
+        return Baseline.extractJsonField(message, "type").length()
+                + Integer.parseInt(Baseline.extractJsonField(message, "questionId").trim())
+                + Integer.parseInt(Baseline.extractJsonField(message, "choice").trim());
+    }
+
+    // The loop at the top of FestivalServer.handleWebSocketMessage
+    private static int oneAnswerPass(String message) {
+        String type = null;
+        String playerId = null;
+        Integer questionId = null;
+        Integer choice = null;
+        Json.Reader reader = new Json.Reader(message);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName(FestivalServer.CLIENT_FIELDS);
+            if (name == null) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "type":
+                    if (type == null) type = reader.nextScalar(); else reader.skipValue();
+                    break;
+                case "playerId":
+                    if (playerId == null) playerId = reader.nextScalar(); else reader.skipValue();
+                    break;
+                case "questionId":
+                    if (questionId == null) questionId = FestivalServer.nextIntOrNull(reader); else reader.skipValue();
+                    break;
+                case "choice":
+                    if (choice == null) choice = FestivalServer.nextIntOrNull(reader); else reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+        return type.length() + questionId + choice;
+    }
+
+    // As ThemeController.loadJsonData reads them
+    private static int exhibits(String content) {
+        int n = 0;
+        Json.Reader reader = new Json.Reader(content);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Map<String, String> item = reader.nextFields();
+            if (item.get("name") != null) n++;
+        }
+        reader.endArray();
+        return n;
+    }
+
+    // As /api/session/status writes it; sendJson streams the writer's buffer without a copy
+    private static Json.Writer status(String room, String text, String[] choices) {
+        Json.Writer json = new Json.Writer().beginObject()
+                .field("room", room).field("state", "QUESTION_ACTIVE").field("playerCount", 1234)
+                .field("currentQuestionIndex", 3).field("totalQuestions", 10);
+        json.name("currentQuestion").beginObject().field("id", 103).field("text", text).name("choices").beginArray();
+        for (String choice : choices) {
+            json.value(choice);
+        }
+        json.endArray().endObject();
+        return json.field("answeredCount", 999).endObject();
+    }
+
+    private static void time(String label, int iterations, Supplier<Object> body) {
+        for (int i = 0; i < iterations; i++) {
+            sink = body.get();
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = body.get();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double nanos = (double) best / iterations;
+        if (nanos >= 10_000) {
+            System.out.printf("%-42s %10.1f us/op%n", label, nanos / 1e3);
+        } else {
+            System.out.printf("%-42s %10.0f ns/op%n", label, nanos);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError("old and new disagree: " + what);
+    }
+
+    /**
+     * The JSON helpers Json replaced, as they were in FestivalServer and ThemeController.
+     */
+    static final class Baseline {
+
+        static String extractJsonField(String json, String field) {
+            String key = "\"" + field + "\"";
+            int start = json.indexOf(key);
+            if (start == -1) return null;
+            start += key.length();
+            while (start < json.length() && Character.isWhitespace(json.charAt(start))) start++;
+            if (start >= json.length() || json.charAt(start) != ':') return null;
+            start++;
+            while (start < json.length() && Character.isWhitespace(json.charAt(start))) start++;
+            if (start >= json.length()) return null;
+            if (json.charAt(start) != '"') {
+                int end = start;
+                while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) == -1) end++;
+                String raw = json.substring(start, end);
+                return raw.isEmpty() || raw.equals("null") ? null : raw;
+            }
+            int end = start + 1;
+            while (end < json.length()) {
+                if (json.charAt(end) == '"' && json.charAt(end - 1) != '\\') break;
+                end++;
+            }
+            if (end >= json.length()) return null;
+            return json.substring(start + 1, end).replace("\\\"", "\"").replace("\\n", "\n").replace("\\\\", "\\");
+        }
+
+        static String extractJsonArray(String json, String field) {
+            Matcher m = Pattern.compile("\"" + Pattern.quote(field) + "\"\\s*:\\s*\\[").matcher(json);
+            if (!m.find()) return null;
+            int start = m.end() - 1;
+            int end = json.indexOf("]", start);
+            if (end == -1) return null;
+            return json.substring(start, end + 1);
+        }
+
+        static String[] parseStringArray(String arrayJson) {
+            List<String> items = new ArrayList<>();
+            int start = 0;
+            while ((start = arrayJson.indexOf("\"", start)) != -1) {
+                int end = start + 1;
+                while (end < arrayJson.length()) {
+                    if (arrayJson.charAt(end) == '"' && arrayJson.charAt(end - 1) != '\\') break;
+                    end++;
+                }
+                if (end < arrayJson.length()) items.add(arrayJson.substring(start + 1, end));
+                start = end + 1;
+            }
+            return items.toArray(new String[0]);
+        }
+
+        static List<FestivalServer.Question> parseQuestions(String json) {
+            List<FestivalServer.Question> questions = new ArrayList<>();
+            int id = 100;
+            int start = 0;
+            while ((start = json.indexOf("{", start)) != -1) {
+                int end = json.indexOf("}", start);
+                if (end == -1) break;
+                String obj = json.substring(start, end + 1);
+                String text = extractJsonField(obj, "question");
+                if (text == null) text = extractJsonField(obj, "text");
+                String choicesStr = extractJsonArray(obj, "choices");
+                String answer = extractJsonField(obj, "answer");
+                String explanation = extractJsonField(obj, "explanation");
+                String timeLimit = extractJsonField(obj, "timeLimit");
+                if (text != null && choicesStr != null) {
+                    String[] choices = parseStringArray(choicesStr);
+                    int correctIndex = 0;
+                    if (answer != null) {
+                        for (int i = 0; i < choices.length; i++) {
+                            if (choices[i].equals(answer)) {
+                                correctIndex = i;
+                                break;
+                            }
+                        }
+                    }
+                    Integer limit = null;
+                    try {
+                        limit = timeLimit == null ? null : Integer.parseInt(timeLimit.trim());
+                    } catch (NumberFormatException e) {
+                        // Default below
+                    }
+                    questions.add(new FestivalServer.Question(id++, text, choices, correctIndex, explanation,
+                            limit != null && limit > 0 ? limit : 60));
+                }
+                start = end + 1;
+            }
+            return questions;
+        }
+
+        static String extractJsonValue(String json, String key) {
+            String regex = "\"" + key + "\"\\s*:\\s*\"(.*?)(?<!\\\\)\"";
+            Pattern p = Pattern.compile(regex, Pattern.DOTALL);
+            Matcher m = p.matcher(json);
+            if (m.find()) return m.group(1).replace("\\\"", "\"").replace("\\n", "\n").replace("\\\\", "\\");
+            return null;
+        }
+
+        static int exhibits(String content) {
+            int n = 0;
+            Matcher matcher = Pattern.compile("\\{([^{}]*)\\}").matcher(content);
+            while (matcher.find()) {
+                String item = matcher.group(1);
+                extractJsonValue(item, "id");
+                String name = extractJsonValue(item, "name");
+                extractJsonValue(item, "era");
+                extractJsonValue(item, "theme");
+                extractJsonValue(item, "description");
+                if (name != null) n++;
+            }
+            return n;
+        }
+
+        static String escape(String s) {
+            if (s == null) return "";
+            return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+        }
+
+        static byte[] status(String room, String text, String[] choices) {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"room\":\"").append(room).append("\",");
+            sb.append("\"state\":\"").append("QUESTION_ACTIVE").append("\",");
+            sb.append("\"playerCount\":").append(1234).append(",");
+            sb.append("\"currentQuestionIndex\":").append(3).append(",");
+            sb.append("\"totalQuestions\":").append(10).append(",");
+            sb.append("\"currentQuestion\":{");
+            sb.append("\"id\":").append(103).append(",");
+            sb.append("\"text\":\"").append(escape(text)).append("\",");
+            sb.append("\"choices\":[");
+            for (int i = 0; i < choices.length; i++) {
+                if (i > 0) sb.append(",");
+                sb.append("\"").append(escape(choices[i])).append("\"");
+            }
+            sb.append("]},");
+            sb.append("\"answeredCount\":").append(999);
+            sb.append("}");
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
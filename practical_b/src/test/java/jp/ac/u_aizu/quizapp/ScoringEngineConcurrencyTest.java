@@ -0,0 +1,141 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrency harness for {@link ScoringEngine} and {@link AnswerStore}: many threads submit
+ * distinct answers and re-sent duplicates (with other choices and latencies) at once, and
+ * the result is checked against what the accepted submissions imply. Each (player, question)
+ * pair must be accepted exactly once, the store must hold the accepted choice and latency,
+ * the tallies must add up, and every player's score must equal the sum of their accepted
+ * correct answers, so no concurrent score update was lost.
+ * <p>
+ * Run with {@code java -cp <classes> jp.ac.u_aizu.quizapp.ScoringEngineConcurrencyTest [rounds]}.
+ * Players span several AnswerStore chunks, so the columns also grow under contention.
+ * Exits with an AssertionError if a check fails.
+ */
+public class ScoringEngineConcurrencyTest {
+
+    private static final int PLAYERS = 3000;
+    private static final int QUESTIONS = 4;
+    private static final int CHOICES = 4;
+    private static final int COPIES = 4; // Submissions per (player, question) pair
+    private static final int THREADS = 8;
+    private static final long TIME_LIMIT_MS = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            long submissions = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                submissions += runRound(pool, new SplittableRandom(round));
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d rounds, %d submissions on %d threads in %.2f s%n",
+                    rounds, submissions, THREADS, seconds);
+            System.out.println("OK");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long runRound(ExecutorService pool, SplittableRandom random) throws Exception {
+        ScoringEngine engine = new ScoringEngine(ScoringEngine.Mode.TIME_WEIGHTED);
+        AnswerStore store = new AnswerStore();
+        FestivalServer.Player[] players = new FestivalServer.Player[PLAYERS];
+        for (int p = 0; p < PLAYERS; p++) {
+            players[p] = new FestivalServer.Player("p" + p, "n" + p, store.registerPlayer(), p);
+        }
+        FestivalServer.Question[] questions = new FestivalServer.Question[QUESTIONS];
+        for (int q = 0; q < QUESTIONS; q++) {
+            questions[q] = new FestivalServer.Question(q, "q" + q, new String[]{"a", "b", "c", "d"},
+                    q % CHOICES, null, (int) (TIME_LIMIT_MS / 1000));
+        }
+
+        // Every pair COPIES times, with its own choice and latency, in random order
+        List<long[]> work = new ArrayList<>(PLAYERS * QUESTIONS * COPIES);
+        for (int p = 0; p < PLAYERS; p++) {
+            for (int q = 0; q < QUESTIONS; q++) {
+                for (int c = 0; c < COPIES; c++) {
+                    work.add(new long[]{p, q, random.nextInt(CHOICES), random.nextInt((int) TIME_LIMIT_MS)});
+                }
+            }
+        }
+        Collections.shuffle(work, new Random(random.nextLong()));
+
+        // Accepted (choice + 1) and latency per pair, as reported by submit; 0 while none was accepted
+        AtomicLongArray accepted = new AtomicLongArray(PLAYERS * QUESTIONS);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int first = t;
+            futures.add(pool.submit(() -> {
+                go.await();
+                for (int i = first; i < work.size(); i += THREADS) {
+                    long[] w = work.get(i);
+                    int p = (int) w[0], q = (int) w[1], choice = (int) w[2];
+                    ScoringEngine.Outcome outcome = engine.submit(store.forQuestion(q, CHOICES), players[p],
+                            choice, questions[q], w[3], TIME_LIMIT_MS);
+                    if (outcome == ScoringEngine.Outcome.DUPLICATE) continue;
+                    long packed = ((long) (choice + 1) << 32) | w[3];
+                    check(accepted.compareAndSet(p * QUESTIONS + q, 0, packed),
+                            "player " + p + " question " + q + " accepted twice");
+                    check((outcome == ScoringEngine.Outcome.CORRECT) == (choice == questions[q].correctIndex),
+                            "player " + p + " question " + q + " scored as " + outcome);
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        for (int q = 0; q < QUESTIONS; q++) {
+            AnswerStore.QuestionAnswers answers = store.get(q);
+            check(answers.answeredCount() == PLAYERS, "question " + q + " answered " + answers.answeredCount());
+            int[] expectedTallies = new int[CHOICES];
+            for (int p = 0; p < PLAYERS; p++) {
+                long packed = accepted.get(p * QUESTIONS + q);
+                check(packed != 0, "player " + p + " question " + q + " never accepted");
+                int choice = (int) (packed >>> 32) - 1;
+                expectedTallies[choice]++;
+                check(answers.choiceOf(players[p].index) == choice, "player " + p + " question " + q + " stored choice");
+                check(answers.latencyOf(players[p].index) == (int) packed, "player " + p + " question " + q + " stored latency");
+            }
+            int[] tallies = answers.tallies();
+            for (int c = 0; c < CHOICES; c++) {
+                check(tallies[c] == expectedTallies[c],
+                        "question " + q + " choice " + c + " tally " + tallies[c] + ", expected " + expectedTallies[c]);
+            }
+        }
+
+        for (int p = 0; p < PLAYERS; p++) {
+            int expected = 0;
+            for (int q = 0; q < QUESTIONS; q++) {
+                long packed = accepted.get(p * QUESTIONS + q);
+                if ((int) (packed >>> 32) - 1 == questions[q].correctIndex) {
+                    expected += engine.points((int) packed, TIME_LIMIT_MS);
+                }
+            }
+            check(players[p].score.get() == expected,
+                    "player " + p + " score " + players[p].score.get() + ", expected " + expected);
+        }
+        return work.size();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
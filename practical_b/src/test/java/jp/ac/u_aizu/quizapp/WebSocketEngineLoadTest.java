@@ -0,0 +1,160 @@
+package jp.ac.u_aizu.quizapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load harness for {@link WebSocketEngine}: opens many WebSocket connections at once and
+ * checks that the engine serves them all from its fixed I/O loops, without a thread per
+ * socket. Each connection then echoes one message and is closed again.
+ * <p>
+ * Run with {@code java -cp <classes> jp.ac.u_aizu.quizapp.WebSocketEngineLoadTest [connections]}
+ * (default 2000); the process needs about two file descriptors per connection. Exits with
+ * an AssertionError if a check fails.
+ */
+public class WebSocketEngineLoadTest {
+
+    private static final int DEFAULT_CONNECTIONS = 2000;
+    private static final int THREAD_SLACK = 4; // Threads the JDK may start on its own meanwhile
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+
+        WebSocketEngine.Config config = new WebSocketEngine.Config();
+        config.deflate = false;
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        WebSocketEngine engine = new WebSocketEngine(0, config, new WebSocketEngine.Listener() {
+            @Override
+            public void onOpen(WebSocketEngine.Connection conn) {
+                opened.incrementAndGet();
+            }
+
+            @Override
+            public void onMessage(WebSocketEngine.Connection conn, String message) {
+                conn.send(WebSocketEngine.textFrame(message));
+            }
+
+            @Override
+            public void onClose(WebSocketEngine.Connection conn) {
+                closed.incrementAndGet();
+            }
+        });
+        engine.start();
+        int port = engine.getLocalPort();
+        int threadsBefore = Thread.activeCount();
+
+        // Connect
+        long start = System.nanoTime();
+        List<Socket> sockets = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(10_000);
+            handshake(socket, port);
+            sockets.add(socket);
+        }
+        long connectMs = (System.nanoTime() - start) / 1_000_000;
+        awaitCount(opened, connections, "onOpen calls");
+        check(engine.getConnectionCount() == connections,
+                "open connections: " + engine.getConnectionCount() + ", expected " + connections);
+
+        int threadsOpen = Thread.activeCount();
+        check(threadsOpen - threadsBefore <= THREAD_SLACK,
+                "thread count grew from " + threadsBefore + " to " + threadsOpen + " with " + connections + " sockets");
+
+        // Echo one message on every connection
+        start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            writeText(sockets.get(i), "m" + i);
+        }
+        for (int i = 0; i < connections; i++) {
+            String echo = readText(sockets.get(i));
+            check(("m" + i).equals(echo), "connection " + i + " echoed " + echo);
+        }
+        long echoMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Disconnect
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        awaitCount(closed, connections, "onClose calls");
+        check(engine.getConnectionCount() == 0, "connections left open: " + engine.getConnectionCount());
+        engine.stop();
+
+        System.out.printf("%d connections: connect %d ms, echo %d ms, threads %d -> %d (%d I/O loops)%n",
+                connections, connectMs, echoMs, threadsBefore, threadsOpen, config.ioThreads);
+        System.out.println("OK");
+    }
+
+    private static void handshake(Socket socket, int port) throws IOException {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String request = "GET /ws HTTP/1.1\r\n" +
+                "Host: 127.0.0.1:" + port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+
+        // Read up to the blank line ending the response head, and no further
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int last4 = 0;
+        while (last4 != 0x0D0A0D0A) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Connection closed during handshake");
+            head.write(b);
+            last4 = (last4 << 8) | b;
+        }
+        String status = head.toString(StandardCharsets.US_ASCII);
+        check(status.startsWith("HTTP/1.1 101"), "handshake answered " + status.lines().findFirst().orElse(""));
+    }
+
+    // A masked text frame, as clients must send
+    private static void writeText(Socket socket, String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        byte[] mask = {0x11, 0x22, 0x33, 0x44};
+        byte[] frame = new byte[6 + payload.length];
+        frame[0] = (byte) 0x81;
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(mask, 0, frame, 2, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[6 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(frame);
+        out.flush();
+    }
+
+    // Reads one short unmasked text frame
+    private static String readText(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] header = in.readNBytes(2);
+        check(header.length == 2 && (header[0] & 0x0F) == 0x1, "expected a text frame");
+        int length = header[1] & 0x7F;
+        check(length < 126, "unexpectedly long echo: " + length);
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (count.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        check(count.get() == expected, what + ": " + count.get() + ", expected " + expected);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
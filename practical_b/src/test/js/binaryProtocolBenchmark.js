@@ -0,0 +1,73 @@
+// binaryProtocolBenchmark.js
+// Decode side of BinaryProtocolBenchmark.java: checks that binaryProtocol.js turns each binary
+// frame into the same object JSON.parse makes of its JSON twin, then times both decoders.
+//
+//   java -cp <classes> jp.ac.u_aizu.quizapp.BinaryProtocolBenchmark frames.bin
+//   node src/test/js/binaryProtocolBenchmark.js frames.bin
+
+const fs = require('fs');
+const path = require('path');
+
+const source = fs.readFileSync(path.join(__dirname, '../../main/resources/static/binaryProtocol.js'), 'utf8');
+const FestivalBinary = new Function(source + '\nreturn FestivalBinary;')();
+
+// Pairs of (binary payload, JSON payload): the string table, question start/end for each
+// question, then answer.ack, question.tick and quiz.result
+function readFrames(file) {
+    const buf = fs.readFileSync(file);
+    let pos = 0;
+    function next() {
+        const length = buf.readInt32BE(pos);
+        pos += 4;
+        const bytes = buf.subarray(pos, pos + length);
+        pos += length;
+        return bytes;
+    }
+    const count = buf.readInt32BE(pos);
+    pos += 4;
+    const frames = [];
+    for (let i = 0; i < count; i++) {
+        const binary = next();
+        const json = next().toString('utf8');
+        frames.push({ binary: binary.buffer.slice(binary.byteOffset, binary.byteOffset + binary.length), json });
+    }
+    return frames;
+}
+
+function time(label, frames, decode, rounds = 5, iterations = 200000) {
+    let best = Infinity;
+    let sink = 0;
+    for (let r = 0; r < rounds; r++) {
+        const start = process.hrtime.bigint();
+        for (let i = 0; i < iterations; i++) {
+            sink += decode(frames[i % frames.length]).type.length;
+        }
+        best = Math.min(best, Number(process.hrtime.bigint() - start) / iterations);
+    }
+    globalThis.benchmarkSink = sink; // Keeps the decoded messages observable
+    console.log(`${label.padEnd(40)} ${best.toFixed(0).padStart(6)} ns`);
+}
+
+const frames = readFrames(process.argv[2] || 'frames.bin');
+const decode = FestivalBinary.createDecoder();
+decode(frames[0].binary); // The string table; yields no message
+
+const messages = frames.slice(1);
+let mismatches = 0;
+for (const frame of messages) {
+    const fromBinary = JSON.stringify(decode(frame.binary)[0]);
+    const fromJson = JSON.stringify(JSON.parse(frame.json));
+    if (fromBinary !== fromJson) {
+        mismatches++;
+        console.log('mismatch:', fromJson, fromBinary);
+    }
+}
+console.log(`${messages.length} messages, ${mismatches} decoded differently from JSON.parse`);
+
+const questions = messages.slice(0, messages.length - 3);
+const small = messages.slice(messages.length - 3);
+time('question start/end, JSON.parse', questions, f => JSON.parse(f.json));
+time('question start/end, binaryProtocol.js', questions, f => decode(f.binary)[0]);
+time('ack/tick/result, JSON.parse', small, f => JSON.parse(f.json));
+time('ack/tick/result, binaryProtocol.js', small, f => decode(f.binary)[0]);
+process.exitCode = mismatches === 0 ? 0 : 1;